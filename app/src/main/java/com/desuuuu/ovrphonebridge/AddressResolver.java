@@ -0,0 +1,159 @@
+package com.desuuuu.ovrphonebridge;
+
+import android.net.Network;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.net.InetAddresses;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+// Each host is resolved on its own, so one slow lookup never holds back the
+// others. Literal addresses and cached results, failures included, are
+// delivered without a lookup.
+class AddressResolver {
+    private static final String TAG = AddressResolver.class.getSimpleName();
+
+    private final HashMap<String, Entry> mCache = new HashMap<>();
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool(
+            runnable -> new Thread(runnable, "AddressResolverThread"));
+
+    void resolve(Network network, String host, int port, Callback callback) {
+        if (InetAddresses.isInetAddress(host)) {
+            callback.onResolved(order(new InetAddress[] { InetAddresses.forString(host) }, port));
+            return;
+        }
+
+        Entry entry = getCached(getCacheKey(network, host));
+
+        if (entry != null) {
+            deliver(entry, port, callback);
+            return;
+        }
+
+        try {
+            mExecutor.execute(() -> lookup(network, host, port, callback));
+        } catch (RejectedExecutionException e) {
+            callback.onFailed(new UnknownHostException("Resolver stopped"));
+        }
+    }
+
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private void lookup(Network network, String host, int port, Callback callback) {
+        String key = getCacheKey(network, host);
+        Entry entry;
+
+        try {
+            InetAddress[] addresses;
+
+            if (network != null) {
+                addresses = network.getAllByName(host);
+            } else {
+                addresses = InetAddress.getAllByName(host);
+            }
+
+            entry = new Entry(addresses, null,
+                    SystemClock.elapsedRealtime() + Constants.TRANSPORT.DNS_CACHE_TTL);
+        } catch (UnknownHostException e) {
+            Log.d(TAG, "Failed to resolve " + host);
+
+            entry = new Entry(null, e,
+                    SystemClock.elapsedRealtime() + Constants.TRANSPORT.DNS_NEGATIVE_CACHE_TTL);
+        }
+
+        synchronized (mCache) {
+            mCache.put(key, entry);
+        }
+
+        deliver(entry, port, callback);
+    }
+
+    private Entry getCached(String key) {
+        synchronized (mCache) {
+            Entry entry = mCache.get(key);
+
+            if (entry == null) {
+                return null;
+            }
+
+            if (SystemClock.elapsedRealtime() >= entry.expiry) {
+                mCache.remove(key);
+                return null;
+            }
+
+            return entry;
+        }
+    }
+
+    private static void deliver(Entry entry, int port, Callback callback) {
+        if (entry.addresses != null && entry.addresses.length > 0) {
+            callback.onResolved(order(entry.addresses, port));
+        } else {
+            callback.onFailed(entry.error != null ? entry.error : new UnknownHostException("No address"));
+        }
+    }
+
+    // Alternates address families, starting with the family of the first
+    // address, as in RFC 8305.
+    private static List<InetSocketAddress> order(InetAddress[] addresses, int port) {
+        ArrayList<InetSocketAddress> primary = new ArrayList<>();
+        ArrayList<InetSocketAddress> secondary = new ArrayList<>();
+
+        boolean primaryIPv6 = (addresses[0] instanceof Inet6Address);
+
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == primaryIPv6) {
+                primary.add(new InetSocketAddress(address, port));
+            } else {
+                secondary.add(new InetSocketAddress(address, port));
+            }
+        }
+
+        ArrayList<InetSocketAddress> result = new ArrayList<>(addresses.length);
+
+        for (int i = 0; i < primary.size() || i < secondary.size(); i++) {
+            if (i < primary.size()) {
+                result.add(primary.get(i));
+            }
+
+            if (i < secondary.size()) {
+                result.add(secondary.get(i));
+            }
+        }
+
+        return result;
+    }
+
+    private static String getCacheKey(Network network, String host) {
+        return (network != null ? network.toString() : "default") + "/" + host;
+    }
+
+    private static class Entry {
+        final InetAddress[] addresses;
+        final UnknownHostException error;
+        final long expiry;
+
+        Entry(InetAddress[] addresses, UnknownHostException error, long expiry) {
+            this.addresses = addresses;
+            this.error = error;
+            this.expiry = expiry;
+        }
+    }
+
+    interface Callback {
+        void onResolved(List<InetSocketAddress> addresses);
+        void onFailed(UnknownHostException e);
+    }
+}
@@ -0,0 +1,9 @@
+package com.desuuuu.ovrphonebridge;
+
+interface Aead {
+    String getName();
+    int getNonceSize();
+    int getTagSize();
+    int encrypt(byte[] output, byte[] input, int length, byte[] ad, int adLength, byte[] nonce, byte[] key) throws Exception;
+    int decrypt(byte[] output, byte[] input, int length, byte[] ad, int adLength, byte[] nonce, byte[] key) throws Exception;
+}
@@ -0,0 +1,78 @@
+package com.desuuuu.ovrphonebridge;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+class AesGcmAead implements Aead {
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+
+    private Cipher mEncryptCipher;
+    private byte[] mEncryptKey;
+    private SecretKeySpec mEncryptKeySpec;
+
+    private Cipher mDecryptCipher;
+    private byte[] mDecryptKey;
+    private SecretKeySpec mDecryptKeySpec;
+
+    @Override
+    public String getName() {
+        return Crypto.CIPHER_AES256GCM;
+    }
+
+    @Override
+    public int getNonceSize() {
+        return NONCE_SIZE;
+    }
+
+    @Override
+    public int getTagSize() {
+        return TAG_SIZE;
+    }
+
+    @Override
+    public int encrypt(byte[] output, byte[] input, int length, byte[] ad, int adLength, byte[] nonce, byte[] key) throws Exception {
+        try {
+            if (mEncryptCipher == null) {
+                mEncryptCipher = Cipher.getInstance(TRANSFORMATION);
+            }
+
+            if (key != mEncryptKey) {
+                mEncryptKey = key;
+                mEncryptKeySpec = new SecretKeySpec(key, "AES");
+            }
+
+            mEncryptCipher.init(Cipher.ENCRYPT_MODE, mEncryptKeySpec, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+            mEncryptCipher.updateAAD(ad, 0, adLength);
+
+            return mEncryptCipher.doFinal(input, 0, length, output, 0);
+        } catch (GeneralSecurityException e) {
+            throw new Exception("Encryption failed");
+        }
+    }
+
+    @Override
+    public int decrypt(byte[] output, byte[] input, int length, byte[] ad, int adLength, byte[] nonce, byte[] key) throws Exception {
+        try {
+            if (mDecryptCipher == null) {
+                mDecryptCipher = Cipher.getInstance(TRANSFORMATION);
+            }
+
+            if (key != mDecryptKey) {
+                mDecryptKey = key;
+                mDecryptKeySpec = new SecretKeySpec(key, "AES");
+            }
+
+            mDecryptCipher.init(Cipher.DECRYPT_MODE, mDecryptKeySpec, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+            mDecryptCipher.updateAAD(ad, 0, adLength);
+
+            return mDecryptCipher.doFinal(input, 0, length, output, 0);
+        } catch (GeneralSecurityException e) {
+            throw new Exception("Decryption failed");
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.desuuuu.ovrphonebridge;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Random;
+
+class BackoffReconnectPolicy implements ReconnectPolicy {
+    private static final String TAG = BackoffReconnectPolicy.class.getSimpleName();
+
+    private final SharedPreferences mSharedPreferences;
+    private final Random mRandom = new Random();
+
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+
+    private int mAttempt;
+    private long mDelay;
+
+    BackoffReconnectPolicy(SharedPreferences sharedPreferences, long baseDelay, long maxDelay) {
+        mSharedPreferences = sharedPreferences;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+
+        mAttempt = mSharedPreferences.getInt("reconnect_attempt", 0);
+        mDelay = mSharedPreferences.getLong("reconnect_delay", mBaseDelay);
+
+        if (mAttempt < 0 || mDelay < mBaseDelay || mDelay > mMaxDelay) {
+            mAttempt = 0;
+            mDelay = mBaseDelay;
+        }
+    }
+
+    @Override
+    public long nextDelay() {
+        long upper = Math.min(mMaxDelay, mDelay * 3);
+
+        mDelay = mBaseDelay + (long)(mRandom.nextDouble() * (upper - mBaseDelay));
+
+        if (mAttempt < Integer.MAX_VALUE) {
+            mAttempt++;
+        }
+
+        Log.d(TAG, "Reconnect attempt " + mAttempt + " in " + mDelay + " ms");
+
+        save();
+
+        return mDelay;
+    }
+
+    @Override
+    public int getAttempt() {
+        return mAttempt;
+    }
+
+    @Override
+    public void reset() {
+        if (mAttempt == 0 && mDelay == mBaseDelay) {
+            return;
+        }
+
+        mAttempt = 0;
+        mDelay = mBaseDelay;
+
+        save();
+    }
+
+    private void save() {
+        mSharedPreferences.edit()
+                .putInt("reconnect_attempt", mAttempt)
+                .putLong("reconnect_delay", mDelay)
+                .apply();
+    }
+}
@@ -0,0 +1,225 @@
+package com.desuuuu.ovrphonebridge;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Maps decode to LinkedHashMap in wire order, arrays to ArrayList, integers to
+// Long and null to null.
+class CborMessageReader {
+    private static final int MAX_DEPTH = 16;
+
+    private final byte[] mInput;
+    private final int mEnd;
+    private int mPosition;
+
+    private CborMessageReader(byte[] input, int offset, int length) {
+        mInput = input;
+        mPosition = offset;
+        mEnd = offset + length;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> read(byte[] input) throws Exception {
+        CborMessageReader reader = new CborMessageReader(input, 0, input.length);
+
+        Object value = reader.readValue(0, false);
+
+        if (!(value instanceof Map) || reader.mPosition != reader.mEnd) {
+            throw new Exception("Invalid message");
+        }
+
+        return (Map<String, Object>)value;
+    }
+
+    private Object readValue(int depth, boolean typeValue) throws Exception {
+        if (depth > MAX_DEPTH) {
+            throw new Exception("Message too deep");
+        }
+
+        int initial = readByte();
+        int major = initial >>> 5;
+        int info = initial & 0x1f;
+
+        switch (major) {
+            case CborMessageWriter.MAJOR_UNSIGNED:
+                long value = readArgument(info);
+
+                if (typeValue) {
+                    String name = MessageTags.get(value);
+
+                    if (name == null) {
+                        throw new Exception("Unknown tag");
+                    }
+
+                    return name;
+                }
+
+                return value;
+
+            case CborMessageWriter.MAJOR_NEGATIVE:
+                return (-1 - readArgument(info));
+
+            case CborMessageWriter.MAJOR_TEXT:
+                return readText(info);
+
+            case CborMessageWriter.MAJOR_ARRAY:
+                return readArray(info, depth);
+
+            case CborMessageWriter.MAJOR_MAP:
+                return readMap(info, depth);
+
+            case CborMessageWriter.MAJOR_SIMPLE:
+                switch (initial) {
+                    case CborMessageWriter.SIMPLE_FALSE:
+                        return false;
+
+                    case CborMessageWriter.SIMPLE_TRUE:
+                        return true;
+
+                    case CborMessageWriter.SIMPLE_NULL:
+                        return null;
+                }
+                break;
+        }
+
+        throw new Exception("Unsupported item");
+    }
+
+    private List<Object> readArray(int info, int depth) throws Exception {
+        List<Object> array = new ArrayList<>();
+
+        if (info == CborMessageWriter.INDEFINITE) {
+            while (!readBreak()) {
+                array.add(readValue(depth + 1, false));
+            }
+        } else {
+            for (long i = readArgument(info); i > 0; i--) {
+                array.add(readValue(depth + 1, false));
+            }
+        }
+
+        return array;
+    }
+
+    private Map<String, Object> readMap(int info, int depth) throws Exception {
+        Map<String, Object> object = new LinkedHashMap<>();
+
+        if (info == CborMessageWriter.INDEFINITE) {
+            while (!readBreak()) {
+                readEntry(object, depth);
+            }
+        } else {
+            for (long i = readArgument(info); i > 0; i--) {
+                readEntry(object, depth);
+            }
+        }
+
+        return object;
+    }
+
+    private void readEntry(Map<String, Object> object, int depth) throws Exception {
+        int initial = readByte();
+        int info = initial & 0x1f;
+
+        String name;
+
+        switch (initial >>> 5) {
+            case CborMessageWriter.MAJOR_UNSIGNED:
+                name = MessageTags.get(readArgument(info));
+
+                if (name == null) {
+                    throw new Exception("Unknown tag");
+                }
+                break;
+
+            case CborMessageWriter.MAJOR_TEXT:
+                name = readText(info);
+                break;
+
+            default:
+                throw new Exception("Invalid key");
+        }
+
+        object.put(name, readValue(depth + 1, name.equals("type")));
+    }
+
+    private String readText(int info) throws Exception {
+        long length = readArgument(info);
+
+        if (length > mEnd - mPosition) {
+            throw new Exception("Truncated input");
+        }
+
+        String text = new String(mInput, mPosition, (int)length, StandardCharsets.UTF_8);
+
+        mPosition += (int)length;
+
+        return text;
+    }
+
+    private boolean readBreak() throws Exception {
+        if (mPosition >= mEnd) {
+            throw new Exception("Truncated input");
+        }
+
+        if ((mInput[mPosition] & 0xff) == CborMessageWriter.BREAK) {
+            mPosition++;
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private long readArgument(int info) throws Exception {
+        if (info < 24) {
+            return info;
+        }
+
+        int size;
+
+        switch (info) {
+            case 24:
+                size = 1;
+                break;
+
+            case 25:
+                size = 2;
+                break;
+
+            case 26:
+                size = 4;
+                break;
+
+            case 27:
+                size = 8;
+                break;
+
+            default:
+                throw new Exception("Invalid argument");
+        }
+
+        long value = 0;
+
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | readByte();
+        }
+
+        if (value < 0) {
+            throw new Exception("Invalid argument");
+        }
+
+        return value;
+    }
+
+    private int readByte() throws Exception {
+        if (mPosition >= mEnd) {
+            throw new Exception("Truncated input");
+        }
+
+        return (mInput[mPosition++] & 0xff);
+    }
+}
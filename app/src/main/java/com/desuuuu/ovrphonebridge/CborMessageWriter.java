@@ -0,0 +1,228 @@
+package com.desuuuu.ovrphonebridge;
+
+import java.util.Arrays;
+
+class CborMessageWriter implements MessageWriter {
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_BYTES = 2;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_ARRAY = 4;
+    static final int MAJOR_MAP = 5;
+    static final int MAJOR_SIMPLE = 7;
+
+    static final int INDEFINITE = 31;
+
+    static final int SIMPLE_FALSE = 0xf4;
+    static final int SIMPLE_TRUE = 0xf5;
+    static final int SIMPLE_NULL = 0xf6;
+    static final int BREAK = 0xff;
+
+    static final byte[] BATCH_PREFIX = {
+            (byte)(MAJOR_MAP << 5 | 2),
+            (byte)MessageTags.get("type"),
+            (byte)MessageTags.get("batch"),
+            (byte)MessageTags.get("messages"),
+            (byte)(MAJOR_ARRAY << 5 | INDEFINITE)
+    };
+    static final byte[] BATCH_SEPARATOR = {};
+    static final byte[] BATCH_SUFFIX = { (byte)BREAK };
+
+    private byte[] mBuffer = new byte[Constants.CRYPTO.BUFFER_SIZE];
+    private int mLength;
+
+    private boolean mTypeValue;
+
+    @Override
+    public MessageWriter reset() {
+        mLength = 0;
+        mTypeValue = false;
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter beginObject() {
+        writeByte(MAJOR_MAP << 5 | INDEFINITE);
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter endObject() {
+        writeByte(BREAK);
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter beginArray() {
+        writeByte(MAJOR_ARRAY << 5 | INDEFINITE);
+
+        mTypeValue = false;
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter endArray() {
+        writeByte(BREAK);
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter name(String name) {
+        int tag = MessageTags.get(name);
+
+        if (tag < 0) {
+            writeText(name);
+        } else {
+            writeHeader(MAJOR_UNSIGNED, tag);
+        }
+
+        mTypeValue = (tag == 0);
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter value(String value) {
+        if (value == null) {
+            writeByte(SIMPLE_NULL);
+        } else {
+            int tag = (mTypeValue ? MessageTags.get(value) : -1);
+
+            if (tag < 0) {
+                writeText(value);
+            } else {
+                writeHeader(MAJOR_UNSIGNED, tag);
+            }
+        }
+
+        mTypeValue = false;
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter value(long value) {
+        if (value < 0) {
+            writeHeader(MAJOR_NEGATIVE, -1 - value);
+        } else {
+            writeHeader(MAJOR_UNSIGNED, value);
+        }
+
+        mTypeValue = false;
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter value(boolean value) {
+        writeByte(value ? SIMPLE_TRUE : SIMPLE_FALSE);
+
+        mTypeValue = false;
+
+        return this;
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mLength);
+    }
+
+    private void writeHeader(int major, long value) {
+        ensureCapacity(9);
+
+        if (value < 24) {
+            mBuffer[mLength++] = (byte)(major << 5 | value);
+        } else if (value < 0x100) {
+            mBuffer[mLength++] = (byte)(major << 5 | 24);
+            mBuffer[mLength++] = (byte)value;
+        } else if (value < 0x10000) {
+            mBuffer[mLength++] = (byte)(major << 5 | 25);
+            mBuffer[mLength++] = (byte)(value >>> 8);
+            mBuffer[mLength++] = (byte)value;
+        } else if (value < 0x100000000L) {
+            mBuffer[mLength++] = (byte)(major << 5 | 26);
+
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                mBuffer[mLength++] = (byte)(value >>> shift);
+            }
+        } else {
+            mBuffer[mLength++] = (byte)(major << 5 | 27);
+
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                mBuffer[mLength++] = (byte)(value >>> shift);
+            }
+        }
+    }
+
+    private void writeText(String text) {
+        int length = 0;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)
+                    && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+
+        writeHeader(MAJOR_TEXT, length);
+
+        ensureCapacity(length);
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (c < 0x80) {
+                mBuffer[mLength++] = (byte)c;
+            } else if (c < 0x800) {
+                mBuffer[mLength++] = (byte)(0xc0 | c >> 6);
+                mBuffer[mLength++] = (byte)(0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c)
+                    && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+
+                mBuffer[mLength++] = (byte)(0xf0 | codePoint >> 18);
+                mBuffer[mLength++] = (byte)(0x80 | codePoint >> 12 & 0x3f);
+                mBuffer[mLength++] = (byte)(0x80 | codePoint >> 6 & 0x3f);
+                mBuffer[mLength++] = (byte)(0x80 | codePoint & 0x3f);
+            } else {
+                if (Character.isSurrogate(c)) {
+                    c = '\ufffd';
+                }
+
+                mBuffer[mLength++] = (byte)(0xe0 | c >> 12);
+                mBuffer[mLength++] = (byte)(0x80 | c >> 6 & 0x3f);
+                mBuffer[mLength++] = (byte)(0x80 | c & 0x3f);
+            }
+        }
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+
+        mBuffer[mLength++] = (byte)value;
+    }
+
+    private void ensureCapacity(int length) {
+        if (mBuffer.length - mLength >= length) {
+            return;
+        }
+
+        mBuffer = Arrays.copyOf(mBuffer, Math.max(mLength + length, mBuffer.length * 2));
+    }
+}
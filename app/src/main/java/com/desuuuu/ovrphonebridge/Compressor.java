@@ -0,0 +1,195 @@
+package com.desuuuu.ovrphonebridge;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+class Compressor {
+    static final String DEFLATE = "deflate";
+    static final String DEFLATE_DICTIONARY = "deflate_dict1";
+
+    private static final byte FLAG_STORED = 0;
+    private static final byte FLAG_DEFLATE = 1;
+
+    private static final byte[] DICTIONARY = ("\"persistent\":true},"
+            + "{\"type\":\"in\",\"body\":\"{\"type\":\"out\",\"body\":\","
+            + "\"date\":\"20\",\"name\":null,\"number\":\"+\"},"
+            + "{\"type\":\"sms_sent\",\"success\":true,\"sms\":"
+            + "{\"type\":\"sms_from_list\",\"page\":0,\"list\":[{\"type\":\"in\",\"body\":\""
+            + "{\"type\":\"sms_list\",\"list\":[{\"type\":\"in\",\"name\":\""
+            + "{\"type\":\"notification_list\",\"list\":[{\"key\":\"0|com.android."
+            + "{\"type\":\"notification_removed\",\"key\":\"0|com."
+            + "{\"type\":\"notification_received\",\"notification\":{\"key\":\"0|com."
+            + "|null|10\",\"app_name\":\"\",\"title\":\"\",\"text\":\"")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final String mMethod;
+    private final byte[] mDictionary;
+
+    private final Deflater mDeflater;
+    private byte[] mDeflateBuffer = new byte[Constants.CRYPTO.BUFFER_SIZE];
+
+    private final Inflater mInflater;
+    private byte[] mInflateBuffer = new byte[Constants.CRYPTO.BUFFER_SIZE];
+
+    private volatile long mInputSize;
+    private volatile long mOutputSize;
+    private volatile long mCompressedCount;
+    private volatile long mSkippedCount;
+
+    Compressor(String method) throws Exception {
+        switch (method) {
+            case DEFLATE:
+                mDictionary = null;
+                break;
+
+            case DEFLATE_DICTIONARY:
+                mDictionary = DICTIONARY;
+                break;
+
+            default:
+                throw new Exception("Unsupported compression method");
+        }
+
+        mMethod = method;
+
+        mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        mInflater = new Inflater(true);
+    }
+
+    int compress(byte[] input, int length) {
+        mDeflateBuffer = ensureCapacity(mDeflateBuffer, 1 + length);
+
+        if (length >= Constants.CRYPTO.COMPRESSION_THRESHOLD) {
+            mDeflater.reset();
+
+            if (mDictionary != null) {
+                mDeflater.setDictionary(mDictionary);
+            }
+
+            mDeflater.setInput(input, 0, length);
+            mDeflater.finish();
+
+            int compressedLength = 1;
+
+            while (!mDeflater.finished() && compressedLength < length) {
+                compressedLength += mDeflater.deflate(
+                        mDeflateBuffer,
+                        compressedLength,
+                        mDeflateBuffer.length - compressedLength);
+            }
+
+            if (mDeflater.finished() && compressedLength < length) {
+                mDeflateBuffer[0] = FLAG_DEFLATE;
+
+                mInputSize += length;
+                mOutputSize += compressedLength;
+                mCompressedCount++;
+
+                return compressedLength;
+            }
+        }
+
+        mDeflateBuffer[0] = FLAG_STORED;
+
+        System.arraycopy(input, 0, mDeflateBuffer, 1, length);
+
+        mInputSize += length;
+        mOutputSize += 1 + length;
+        mSkippedCount++;
+
+        return 1 + length;
+    }
+
+    byte[] getCompressed() {
+        return mDeflateBuffer;
+    }
+
+    byte[] decompress(byte[] input, int length) throws Exception {
+        if (length < 1) {
+            throw new Exception("Invalid input");
+        }
+
+        switch (input[0]) {
+            case FLAG_STORED:
+                return Arrays.copyOfRange(input, 1, length);
+
+            case FLAG_DEFLATE:
+                break;
+
+            default:
+                throw new Exception("Invalid compression flag");
+        }
+
+        mInflater.reset();
+
+        if (mDictionary != null) {
+            mInflater.setDictionary(mDictionary);
+        }
+
+        mInflater.setInput(input, 1, length - 1);
+
+        int decompressedLength = 0;
+
+        try {
+            while (!mInflater.finished()) {
+                if (decompressedLength == mInflateBuffer.length) {
+                    if (decompressedLength >= Constants.TRANSPORT.MAX_MESSAGE_SIZE) {
+                        throw new Exception("Message too large");
+                    }
+
+                    mInflateBuffer = ensureCapacity(mInflateBuffer, decompressedLength + 1);
+                }
+
+                int inflated = mInflater.inflate(
+                        mInflateBuffer,
+                        decompressedLength,
+                        mInflateBuffer.length - decompressedLength);
+
+                if (inflated == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    throw new Exception("Truncated input");
+                }
+
+                decompressedLength += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new Exception("Invalid input");
+        }
+
+        return Arrays.copyOf(mInflateBuffer, decompressedLength);
+    }
+
+    String getMethod() {
+        return mMethod;
+    }
+
+    long getCompressedCount() {
+        return mCompressedCount;
+    }
+
+    long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    double getRatio() {
+        if (mOutputSize == 0) {
+            return 1;
+        }
+
+        return ((double)mInputSize / mOutputSize);
+    }
+
+    static String[] getSupportedMethods() {
+        return new String[] { DEFLATE_DICTIONARY, DEFLATE };
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int length) {
+        if (buffer.length >= length) {
+            return buffer;
+        }
+
+        return new byte[Math.max(length, buffer.length * 2)];
+    }
+}
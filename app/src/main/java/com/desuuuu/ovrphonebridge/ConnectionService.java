@@ -13,13 +13,16 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
 import android.os.PowerManager;
 import android.provider.ContactsContract;
 import android.provider.Telephony;
@@ -31,19 +34,21 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.libsodium.jni.encoders.Encoder;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -52,6 +57,7 @@ import java.util.regex.Pattern;
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContentResolverCompat;
 import androidx.core.content.ContextCompat;
+import androidx.core.os.CancellationSignal;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import io.michaelrocks.libphonenumber.android.NumberParseException;
 import io.michaelrocks.libphonenumber.android.PhoneNumberUtil;
@@ -60,42 +66,93 @@ import io.michaelrocks.libphonenumber.android.Phonenumber.PhoneNumber;
 public class ConnectionService extends Service {
     private static final String TAG = "ConnectionService";
 
-    private Handler mMainHandler;
+    private HandlerThread mControlThread;
+    private HandlerThread mDecodeThread;
+    private Handler mControlHandler;
+    private Handler mCommandHandler;
+    private InboundDecoder mDecoder;
+    private ConnectionStateMachine mConnectionState;
     private SimpleDateFormat mDateFormatter;
+    private final MessageWriter mJsonWriter = new JsonMessageWriter();
+    private final MessageWriter mCborWriter = new CborMessageWriter();
+    private MessageWriter mMessageWriter = mJsonWriter;
     private PhoneNumberUtil mPhoneNumberUtil;
     private PowerManager.WakeLock mWakeLock;
     private LocalBroadcastManager mBroadcastManager;
     private SharedPreferences mSharedPreferences;
 
     private StatusRequestReceiver mStatusRequestReceiver;
-    private NotificationListReceiver mNotificationListReceiver;
-    private NotificationReceivedReceiver mNotificationReceivedReceiver;
-    private NotificationRemovedReceiver mNotificationRemovedReceiver;
+    private NotificationListener mNotificationListener;
     private SmsSentReceiver mSmsSentReceiver;
+    private NetworkCallback mNetworkCallback;
 
     private Runnable mConnect;
+    private Runnable mConnectionStable;
     private Runnable mHandshakeTimeout;
+    private Runnable mCheckRekey;
+    private Runnable mRekeyIfNeeded;
     private Runnable mCheckNotificationService;
-    private ConnectionHandler mConnectionHandler;
+    private volatile ConnectionTransport mTransport;
+    private OutboundQueue mOutboundQueue;
+    private QueryExecutor mQueryExecutor;
+    private SingleFlight mRequestFlights;
+    private volatile SingleFlight.Flight mNotificationListFlight;
+    private Heartbeat mHeartbeat;
 
     private int mStatus = Constants.SERVICE.STATUS_STOPPED;
-    private boolean mHandshakeDone;
-    private int mRetryAttempt;
+    private volatile boolean mSessionOpen;
+    private volatile int mSessionGeneration;
+    private volatile boolean mBinaryFraming;
+    private volatile boolean mBatching;
+    private boolean mFragments;
+    private volatile boolean mBinaryEncoding;
+    private boolean mServerHeartbeat;
+    private boolean mServerRekey;
+    private ReconnectPolicy mReconnectPolicy;
+    private boolean mWaitingForNetwork;
+    private Network mNetwork;
+    private Network mSocketNetwork;
+    private Network mSessionNetwork;
 
     private String mPublicKey;
     private String mSecretKey;
-    private Crypto mCrypto;
+    private volatile Crypto mCrypto;
+    private SessionTicket mSessionTicket;
+    private SessionTicket mResumedTicket;
+    private byte[] mResumptionNonce;
+    private byte[] mStreamHeader;
     private String mServerAddress;
+    private String[] mServerAddresses;
     private int mServerPort;
     private boolean mRetryForever;
+    private long mHeartbeatInterval;
     private boolean mFeatureNotifications;
     private boolean mFeatureSMS;
     private String mDeviceName;
+    private int mSmsRequestCode;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mControlThread = new HandlerThread("ConnectionControlThread");
+        mControlThread.start();
+
+        mDecodeThread = new HandlerThread("ConnectionDecodeThread");
+        mDecodeThread.start();
+
+        mControlHandler = new Handler(mControlThread.getLooper());
+        mCommandHandler = new Handler(mControlThread.getLooper());
+        mDecoder = new InboundDecoder(mDecodeThread.getLooper());
+        mConnectionState = new ConnectionStateMachine(
+                new HandlerScheduler(mControlThread.getLooper()),
+                new ConnectionStateListener());
+    }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent == null) {
-            startService();
+            mCommandHandler.post(() -> startService(true));
 
             return START_STICKY;
         }
@@ -105,21 +162,23 @@ public class ConnectionService extends Service {
         if (action != null) {
             switch (action) {
                 case Constants.INTENT.START_CONNECTION_SERVICE:
-                    startService();
+                    mCommandHandler.post(() -> startService(false));
                     return START_STICKY;
 
                 case Constants.INTENT.STOP_CONNECTION_SERVICE:
-                    stopService();
+                    mCommandHandler.post(this::stopService);
                     break;
 
                 case Constants.INTENT.DISCONNECT_CONNECTION_SERVICE:
-                    disconnect();
+                    mCommandHandler.post(() -> disconnect());
                     break;
 
                 case Constants.INTENT.HANDSHAKE_RESPONSE:
-                    handshakeResponse(intent.getBooleanExtra("allow", false),
-                            intent.getBooleanExtra("remember", true),
-                            intent.getStringExtra("identifier"));
+                    boolean allow = intent.getBooleanExtra("allow", false);
+                    boolean remember = intent.getBooleanExtra("remember", true);
+                    String identifier = intent.getStringExtra("identifier");
+
+                    mCommandHandler.post(() -> handshakeResponse(allow, remember, identifier));
                     break;
             }
         }
@@ -131,9 +190,14 @@ public class ConnectionService extends Service {
     public void onDestroy() {
         super.onDestroy();
 
-        if (mStatus != Constants.SERVICE.STATUS_STOPPED) {
-            stopService();
-        }
+        mCommandHandler.post(() -> {
+            if (mStatus != Constants.SERVICE.STATUS_STOPPED) {
+                stopService();
+            }
+        });
+
+        mControlThread.quitSafely();
+        mDecodeThread.quitSafely();
     }
 
     @Override
@@ -141,12 +205,11 @@ public class ConnectionService extends Service {
         return null;
     }
 
-    @SuppressLint("SimpleDateFormat")
-    private void startService() {
+    private void startService(boolean restarted) {
         if (mStatus == Constants.SERVICE.STATUS_DISCONNECTED) {
             startForeground(Constants.NOTIFICATION.ID_CONNECTION_SERVICE, buildForegroundNotification());
 
-            mRetryAttempt = 0;
+            mReconnectPolicy.reset();
 
             connect();
             return;
@@ -172,9 +235,11 @@ public class ConnectionService extends Service {
 
         startForeground(Constants.NOTIFICATION.ID_CONNECTION_SERVICE, buildForegroundNotification());
 
-        mMainHandler = new Handler();
-        mDateFormatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        mHeartbeat = new Heartbeat(mControlHandler, new HeartbeatListener());
+        mDateFormatter = createDateFormatter();
         mPhoneNumberUtil = PhoneNumberUtil.createInstance(this);
+        mQueryExecutor = new QueryExecutor(Constants.QUERY.THREADS, Constants.QUERY.MAX_PENDING);
+        mRequestFlights = new SingleFlight(Constants.QUERY.FLIGHT_TIMEOUT);
 
         PowerManager powerManager = (PowerManager)getSystemService(Activity.POWER_SERVICE);
 
@@ -185,31 +250,45 @@ public class ConnectionService extends Service {
         mWakeLock.acquire();
 
         mStatusRequestReceiver = new StatusRequestReceiver();
-        mNotificationListReceiver = new NotificationListReceiver();
-        mNotificationReceivedReceiver = new NotificationReceivedReceiver();
-        mNotificationRemovedReceiver = new NotificationRemovedReceiver();
+        mNotificationListener = new NotificationListener();
 
         mSmsSentReceiver = new SmsSentReceiver();
 
         mBroadcastManager.registerReceiver(mStatusRequestReceiver,
                 new IntentFilter(Constants.INTENT.STATUS_REQUEST));
 
-        mBroadcastManager.registerReceiver(mNotificationListReceiver,
-                new IntentFilter(Constants.INTENT.NOTIFICATION_LIST));
+        NotificationEvents.start(mNotificationListener);
 
-        mBroadcastManager.registerReceiver(mNotificationReceivedReceiver,
-                new IntentFilter(Constants.INTENT.NOTIFICATION_RECEIVED));
+        registerReceiver(mSmsSentReceiver, new IntentFilter(Constants.INTENT.SMS_SENT), null, mCommandHandler);
 
-        mBroadcastManager.registerReceiver(mNotificationRemovedReceiver,
-                new IntentFilter(Constants.INTENT.NOTIFICATION_REMOVED));
+        ConnectivityManager connectivityManager = (ConnectivityManager)getSystemService(
+                Context.CONNECTIVITY_SERVICE);
 
-        registerReceiver(mSmsSentReceiver, new IntentFilter(Constants.INTENT.SMS_SENT));
+        mNetworkCallback = new NetworkCallback();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            connectivityManager.registerDefaultNetworkCallback(mNetworkCallback);
+        } else {
+            connectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build(), mNetworkCallback);
+        }
 
         mConnect = this::connect;
+        mConnectionStable = () -> mReconnectPolicy.reset();
         mHandshakeTimeout = () -> onSocketHandshakeFail(getString(R.string.handshake_timeout));
+        mCheckRekey = this::checkRekey;
+        mRekeyIfNeeded = this::rekeyIfNeeded;
         mCheckNotificationService = this::checkNotificationService;
 
-        mRetryAttempt = 0;
+        mReconnectPolicy = new BackoffReconnectPolicy(
+                mSharedPreferences,
+                Constants.RECONNECT.BASE_DELAY,
+                Constants.RECONNECT.MAX_DELAY);
+
+        if (!restarted) {
+            mReconnectPolicy.reset();
+        }
 
         connect();
     }
@@ -224,17 +303,33 @@ public class ConnectionService extends Service {
 
         disconnect(true);
 
+        if (mTransport != null) {
+            mTransport.quit();
+            mTransport = null;
+        }
+
+        mQueryExecutor.shutdown();
+
         mStatus = Constants.SERVICE.STATUS_STOPPED;
 
         broadcastStatus();
 
         mBroadcastManager.unregisterReceiver(mStatusRequestReceiver);
-        mBroadcastManager.unregisterReceiver(mNotificationListReceiver);
-        mBroadcastManager.unregisterReceiver(mNotificationReceivedReceiver);
-        mBroadcastManager.unregisterReceiver(mNotificationRemovedReceiver);
+
+        NotificationEvents.stop();
 
         unregisterReceiver(mSmsSentReceiver);
 
+        ConnectivityManager connectivityManager = (ConnectivityManager)getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+
+        connectivityManager.unregisterNetworkCallback(mNetworkCallback);
+
+        mNetworkCallback = null;
+        mNetwork = null;
+
+        mSessionTicket = null;
+
         stopForeground(true);
 
         if (mWakeLock.isHeld()) {
@@ -249,6 +344,10 @@ public class ConnectionService extends Service {
             return;
         }
 
+        if (!mConnectionState.handle(ConnectionStateMachine.Event.CONNECT)) {
+            return;
+        }
+
         try {
             parseSettings();
         } catch (Exception e) {
@@ -256,20 +355,39 @@ public class ConnectionService extends Service {
             return;
         }
 
-        if (!MainActivity.isNetworkAvailable(this)) {
-            disconnect(getString(R.string.network_unavailable));
+        mControlHandler.removeCallbacksAndMessages(null);
+
+        if (mNetwork == null && !MainActivity.isNetworkAvailable(this)) {
+            waitForNetwork();
             return;
         }
 
+        mWaitingForNetwork = false;
+
+        // Before N the callback tracks any network with internet access, not
+        // the default one, so sockets are left to the system's routing.
+        mSocketNetwork = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ? mNetwork : null);
+        mSessionNetwork = getDefaultNetwork();
+
         Log.d(TAG, "Connecting to " + mServerAddress + ":" + mServerPort);
 
         if (!mWakeLock.isHeld()) {
             mWakeLock.acquire();
         }
 
-        mMainHandler.removeCallbacksAndMessages(null);
+        mSessionOpen = false;
+
+        mDecoder.reset();
+        mQueryExecutor.cancelAll();
+        mRequestFlights.clear();
 
-        mHandshakeDone = false;
+        mBinaryFraming = false;
+        mBatching = false;
+        mFragments = false;
+        mServerHeartbeat = false;
+        mServerRekey = false;
+
+        setBinaryEncoding(false);
 
         if (mStatus != Constants.SERVICE.STATUS_CONNECTING) {
             mStatus = Constants.SERVICE.STATUS_CONNECTING;
@@ -283,31 +401,33 @@ public class ConnectionService extends Service {
             checkNotificationService();
         }
 
-        HandlerThread connectionThread = new HandlerThread("ConnectionWriterThread");
-        connectionThread.start();
+        if (mTransport == null) {
+            try {
+                mOutboundQueue = new OutboundQueue(
+                        Constants.TRANSPORT.MAX_QUEUED_MESSAGES,
+                        Constants.TRANSPORT.MAX_QUEUED_SIZE);
+
+                mTransport = new ConnectionTransport(
+                        mOutboundQueue,
+                        new MessageEncoder(),
+                        new TransportListener());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to start ConnectionTransport");
 
-        if (mConnectionHandler != null) {
-            mConnectionHandler.stop();
-            mConnectionHandler.sendEmptyMessage(Constants.MESSAGE.DISCONNECT);
+                e.printStackTrace();
 
-            mConnectionHandler.getLooper().quitSafely();
+                disconnect(getString(R.string.connection_failed));
 
-            mMainHandler.removeCallbacksAndMessages(null);
+                mControlHandler.postDelayed(() -> {
+                    if (mWakeLock.isHeld()) {
+                        mWakeLock.release();
+                    }
+                }, 3000);
+                return;
+            }
         }
 
-        mConnectionHandler = new ConnectionHandler(mServerAddress, mServerPort, connectionThread.getLooper());
-
-        if (!mConnectionHandler.sendEmptyMessage(Constants.MESSAGE.CONNECT)) {
-            Log.e(TAG, "Failed to start ConnectionWriterThread");
-
-            disconnect(getString(R.string.connection_failed));
-
-            mMainHandler.postDelayed(() -> {
-                if (mWakeLock.isHeld()) {
-                    mWakeLock.release();
-                }
-            }, 3000);
-        }
+        mTransport.connect(mSocketNetwork, mServerAddresses, mServerPort);
     }
 
     private void disconnect() {
@@ -330,20 +450,69 @@ public class ConnectionService extends Service {
 
         Log.d(TAG, "Disconnecting");
 
-        if (mConnectionHandler != null) {
-            mConnectionHandler.stop();
-            mConnectionHandler.sendEmptyMessage(Constants.MESSAGE.DISCONNECT);
+        if (mTransport != null) {
+            mTransport.disconnect();
+
+            Log.d(TAG, String.format(Locale.US,
+                    "Flushes: %d, %.1f messages and %.0f bytes per flush, %d batches",
+                    mTransport.getFlushCount(),
+                    mTransport.getMessagesPerFlush(),
+                    mTransport.getBytesPerFlush(),
+                    mTransport.getBatchCount()));
+
+            Log.d(TAG, String.format(Locale.US,
+                    "Outbound queue: %d dropped, %d merged",
+                    mOutboundQueue.getDroppedCount(),
+                    mOutboundQueue.getMergedCount()));
+
+            Log.d(TAG, String.format(Locale.US,
+                    "Queries: %d completed, %d cancelled, %d rejected, %d coalesced",
+                    mQueryExecutor.getCompletedCount(),
+                    mQueryExecutor.getCancelledCount(),
+                    mQueryExecutor.getRejectedCount(),
+                    mRequestFlights.getCoalescedCount()));
 
-            mConnectionHandler.getLooper().quitSafely();
+            Log.d(TAG, String.format(Locale.US,
+                    "Connections: %d established, last in %d ms",
+                    mConnectionState.getConnectCount(),
+                    mConnectionState.getLastConnectDuration()));
+        }
+
+        Compressor compressor = (mCrypto != null ? mCrypto.getCompressor() : null);
 
-            mConnectionHandler = null;
+        if (compressor != null) {
+            Log.d(TAG, String.format(Locale.US,
+                    "Compression: %d compressed, %d skipped, %.2fx ratio",
+                    compressor.getCompressedCount(),
+                    compressor.getSkippedCount(),
+                    compressor.getRatio()));
         }
 
-        mMainHandler.removeCallbacksAndMessages(null);
+        mHeartbeat.stop();
+
+        mControlHandler.removeCallbacksAndMessages(null);
+
+        mWaitingForNetwork = false;
+        mSocketNetwork = null;
+        mSessionNetwork = null;
 
         mStatus = Constants.SERVICE.STATUS_DISCONNECTED;
 
-        mHandshakeDone = false;
+        mConnectionState.handle(ConnectionStateMachine.Event.DISCONNECT);
+
+        mSessionOpen = false;
+
+        mDecoder.reset();
+        mQueryExecutor.cancelAll();
+        mRequestFlights.clear();
+
+        mBinaryFraming = false;
+        mBatching = false;
+        mFragments = false;
+        mServerHeartbeat = false;
+        mServerRekey = false;
+
+        setBinaryEncoding(false);
 
         if (!silent) {
             broadcastStatus(message);
@@ -352,20 +521,138 @@ public class ConnectionService extends Service {
         }
     }
 
+    private void scheduleReconnect() {
+        mConnectionState.handle(ConnectionStateMachine.Event.BACK_OFF);
+
+        if (mNetwork == null && !MainActivity.isNetworkAvailable(this)) {
+            Log.d(TAG, "Waiting for network");
+
+            mWaitingForNetwork = true;
+            return;
+        }
+
+        mConnectionState.schedule(mConnect, mReconnectPolicy.nextDelay());
+    }
+
+    private void waitForNetwork() {
+        Log.d(TAG, "Waiting for network");
+
+        mConnectionState.handle(ConnectionStateMachine.Event.BACK_OFF);
+
+        mWaitingForNetwork = true;
+
+        mStatus = Constants.SERVICE.STATUS_CONNECTING;
+
+        broadcastStatus(getString(R.string.network_unavailable));
+
+        updateForegroundNotification(buildForegroundNotification());
+    }
+
+    private void onNetworkAvailable(Network network) {
+        mNetwork = network;
+
+        if (mStatus == Constants.SERVICE.STATUS_STOPPED
+                || mStatus == Constants.SERVICE.STATUS_DISCONNECTED) {
+            return;
+        }
+
+        if (mConnectionState.is(ConnectionStateMachine.State.BACKING_OFF)) {
+            Log.d(TAG, "Network available, reconnecting");
+
+            connect();
+            return;
+        }
+
+        // Before N the callback also reports networks that are not the
+        // default one, so the default is looked up instead.
+        Network defaultNetwork = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                ? network
+                : getDefaultNetwork());
+
+        if (mSessionNetwork != null
+                && defaultNetwork != null
+                && !mSessionNetwork.equals(defaultNetwork)) {
+            Log.d(TAG, "Default network changed, reconnecting");
+
+            disconnect(true);
+
+            mStatus = Constants.SERVICE.STATUS_CONNECTING;
+
+            broadcastStatus();
+
+            updateForegroundNotification(buildForegroundNotification());
+
+            connect();
+        }
+    }
+
+    // The session's network is only bound to from N, but it is compared
+    // with the default network on every version that can look it up.
+    private Network getDefaultNetwork() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return null;
+        }
+
+        ConnectivityManager connectivityManager = (ConnectivityManager)getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+
+        return connectivityManager.getActiveNetwork();
+    }
+
+    private void onNetworkLost(Network network) {
+        if (!network.equals(mNetwork)) {
+            return;
+        }
+
+        mNetwork = null;
+
+        if (mStatus == Constants.SERVICE.STATUS_STOPPED
+                || mStatus == Constants.SERVICE.STATUS_DISCONNECTED
+                || mWaitingForNetwork) {
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N && MainActivity.isNetworkAvailable(this)) {
+            return;
+        }
+
+        Log.d(TAG, "Network lost");
+
+        disconnect(true);
+
+        waitForNetwork();
+    }
+
     private void handshakePhase1() {
         if (mStatus == Constants.SERVICE.STATUS_STOPPED
                 || mStatus == Constants.SERVICE.STATUS_DISCONNECTED) {
             return;
         }
 
-        mMainHandler.removeCallbacks(mHandshakeTimeout);
+        mResumedTicket = null;
+        mResumptionNonce = null;
+
+        String message = "@@" + mPublicKey;
+
+        if (mSessionTicket != null && mSessionTicket.isValid(mServerAddress, mServerPort)) {
+            Log.d(TAG, "Resuming session");
+
+            mResumedTicket = mSessionTicket;
+            mResumptionNonce = Crypto.randomBytes(Constants.RESUMPTION.NONCE_SIZE);
+
+            message = "@!" + Encoder.HEX.encode(mResumedTicket.ticket)
+                    + ":" + Encoder.HEX.encode(mResumptionNonce)
+                    + ":" + Encoder.HEX.encode(Crypto.hash(mResumedTicket.secret, mResumptionNonce));
+        }
+
+        mSessionTicket = null;
 
-        if (!sendRawMessage("@@" + mPublicKey)) {
+        if (!sendRawMessage(message)) {
             onSocketHandshakeFail(getString(R.string.handshake_failed));
             return;
         }
 
-        mMainHandler.postDelayed(mHandshakeTimeout, Constants.HANDSHAKE_TIMEOUT);
+        mConnectionState.schedule(mHandshakeTimeout, Constants.HANDSHAKE_TIMEOUT);
     }
 
     private void handshakePhase2(String data) {
@@ -374,7 +661,12 @@ public class ConnectionService extends Service {
             return;
         }
 
-        mMainHandler.removeCallbacks(mHandshakeTimeout);
+        if (mResumedTicket != null) {
+            Log.d(TAG, "Session resumption rejected");
+
+            mResumedTicket = null;
+            mResumptionNonce = null;
+        }
 
         byte[] serverPublicKey;
 
@@ -405,14 +697,102 @@ public class ConnectionService extends Service {
         if (mAllowedServers.contains(identifier)) {
             handshakeResponse(true, false, identifier);
         } else {
+            if (!mConnectionState.handle(ConnectionStateMachine.Event.TRUST_PROMPT)) {
+                onSocketHandshakeFail(getString(R.string.handshake_failed));
+                return;
+            }
+
             sendHandshakeNotification(identifier);
         }
     }
 
+    private void resumeSession(String data) {
+        if (mStatus == Constants.SERVICE.STATUS_STOPPED
+                || mStatus == Constants.SERVICE.STATUS_DISCONNECTED) {
+            return;
+        }
+
+        SessionTicket ticket = mResumedTicket;
+        byte[] clientNonce = mResumptionNonce;
+
+        mResumedTicket = null;
+        mResumptionNonce = null;
+
+        if (ticket == null || !mConnectionState.is(ConnectionStateMachine.State.HANDSHAKING)) {
+            onSocketHandshakeFail(getString(R.string.handshake_failed));
+            return;
+        }
+
+        try {
+            String[] parts = data.split(":");
+
+            if (parts.length != 2) {
+                throw new Exception("Invalid message");
+            }
+
+            byte[] serverNonce = Encoder.HEX.decode(parts[0]);
+            byte[] mac = Encoder.HEX.decode(parts[1]);
+
+            if (!MessageDigest.isEqual(mac, Crypto.hash(ticket.secret, Crypto.concat(clientNonce, serverNonce)))) {
+                throw new Exception("Invalid resumption proof");
+            }
+
+            mCrypto = Crypto.resume(ticket, clientNonce, serverNonce);
+        } catch (Exception e) {
+            e.printStackTrace();
+
+            onSocketHandshakeFail(getString(R.string.handshake_failed));
+            return;
+        }
+
+        Log.d(TAG, "Session resumed, cipher suite: " + mCrypto.getCipherSuite());
+
+        mBinaryFraming = ticket.binaryFraming;
+        mBatching = ticket.batching;
+        mFragments = ticket.fragments;
+        mServerHeartbeat = ticket.heartbeat;
+        mServerRekey = ticket.rekey;
+
+        setBinaryEncoding(ticket.binaryEncoding);
+
+        onSocketHandshakeSuccess();
+    }
+
+    private void onSessionTicket(String ticket, long lifetime) {
+        if (mCrypto == null) {
+            return;
+        }
+
+        try {
+            mSessionTicket = new SessionTicket(
+                    Encoder.HEX.decode(ticket),
+                    mCrypto.getResumptionSecret(),
+                    mCrypto.getServerIdentifier(),
+                    mServerAddress,
+                    mServerPort,
+                    mBinaryFraming,
+                    mBatching,
+                    mFragments,
+                    mBinaryEncoding,
+                    mServerHeartbeat,
+                    mServerRekey,
+                    (mCrypto.getCompressor() != null ? mCrypto.getCompressor().getMethod() : null),
+                    mCrypto.getNegotiatedCipherSuite(),
+                    mCrypto.isStreaming(),
+                    Math.min(lifetime * 1000, Constants.RESUMPTION.MAX_LIFETIME));
+        } catch (Exception e) {
+            Log.e(TAG, "Invalid session ticket");
+
+            e.printStackTrace();
+        }
+    }
+
     private void handshakeResponse(boolean allow, boolean remember, String identifier) {
         if (mStatus == Constants.SERVICE.STATUS_STOPPED
                 || mStatus == Constants.SERVICE.STATUS_DISCONNECTED
-                || mCrypto == null) {
+                || mCrypto == null
+                || !(mConnectionState.is(ConnectionStateMachine.State.HANDSHAKING)
+                || mConnectionState.is(ConnectionStateMachine.State.AWAITING_TRUST))) {
             return;
         }
 
@@ -441,6 +821,21 @@ public class ConnectionService extends Service {
 
             features.put("notifications", mFeatureNotifications);
             features.put("sms", mFeatureSMS);
+            features.put("binary_framing", true);
+            features.put("batch", true);
+            features.put("fragments", true);
+            features.put("encodings", new JSONArray(new String[] {
+                    Constants.ENCODING.CBOR,
+                    Constants.ENCODING.JSON
+            }));
+            features.put("heartbeat", true);
+            features.put("resumption", true);
+            features.put("stream_cipher", true);
+            features.put("cipher_suites", new JSONArray(Crypto.getSupportedCipherSuites()));
+            features.put("rekey", true);
+            features.put("compression", new JSONArray(Compressor.getSupportedMethods()));
+
+            mStreamHeader = Crypto.createStreamHeader();
 
             message = new JSONObject();
 
@@ -450,6 +845,7 @@ public class ConnectionService extends Service {
             message.put("os_type", "android");
             message.put("os_version", Build.VERSION.RELEASE);
             message.put("features", features);
+            message.put("stream_header", Encoder.HEX.encode(mStreamHeader));
         } catch (JSONException e) {
             e.printStackTrace();
 
@@ -457,53 +853,143 @@ public class ConnectionService extends Service {
             return;
         }
 
-        if (!sendJsonMessage(message)) {
+        if (!sendJsonMessage(message, Constants.PRIORITY.CONTROL)) {
+            onSocketHandshakeFail(getString(R.string.handshake_failed));
+            return;
+        }
+
+        if (!mConnectionState.handle(ConnectionStateMachine.Event.HANDSHAKE_SENT)) {
             onSocketHandshakeFail(getString(R.string.handshake_failed));
             return;
         }
 
-        mMainHandler.postDelayed(mHandshakeTimeout, Constants.HANDSHAKE_TIMEOUT);
+        mConnectionState.schedule(mHandshakeTimeout, Constants.HANDSHAKE_TIMEOUT);
     }
 
     private boolean sendRawMessage(String message) {
         if (mStatus == Constants.SERVICE.STATUS_STOPPED
                 || mStatus == Constants.SERVICE.STATUS_DISCONNECTED
-                || mConnectionHandler == null) {
+                || mTransport == null) {
             return false;
         }
 
-        Message msg = Message.obtain(
-                mConnectionHandler,
-                Constants.MESSAGE.MESSAGE,
-                message);
+        return mTransport.send(OutboundMessage.raw(message.getBytes(StandardCharsets.UTF_8)));
+    }
 
-        return mConnectionHandler.sendMessage(msg);
+    private boolean sendJsonMessage(JSONObject message, int priority) {
+        return sendMessage(OutboundMessage.create(
+                priority,
+                message.toString().getBytes(StandardCharsets.UTF_8)));
     }
 
-    private boolean sendJsonMessage(JSONObject message) {
+    private boolean sendMessage(OutboundMessage message) {
         if (mStatus == Constants.SERVICE.STATUS_STOPPED
                 || mStatus == Constants.SERVICE.STATUS_DISCONNECTED
-                || mConnectionHandler == null
+                || mTransport == null
                 || mCrypto == null) {
             return false;
         }
 
-        try {
-            String encrypted = mCrypto.encrypt(message.toString());
+        if (!mTransport.send(message)) {
+            return false;
+        }
+
+        if (mServerRekey
+                && message.type != OutboundMessage.TYPE_REKEY
+                && mCrypto.shouldRekey()) {
+            sendRekey();
+        }
 
-            Message msg = Message.obtain(
-                    mConnectionHandler,
-                    Constants.MESSAGE.MESSAGE,
-                    encrypted);
+        return true;
+    }
 
-            return mConnectionHandler.sendMessage(msg);
-        } catch (Exception e) {
-            Log.d(TAG, "Encryption failed");
+    // Safe to call from any thread, the message is dropped if the session it
+    // was built for is gone by the time the transport drains it.
+    private void sendSessionMessage(OutboundMessage message, int generation) {
+        ConnectionTransport transport = mTransport;
+        Crypto crypto = mCrypto;
+
+        if (transport == null || crypto == null || !transport.send(message, generation)) {
+            return;
+        }
+
+        if (crypto.shouldRekey()) {
+            mControlHandler.post(mRekeyIfNeeded);
+        }
+    }
+
+    private MessageWriter createMessageWriter() {
+        return (mBinaryEncoding ? new CborMessageWriter() : new JsonMessageWriter());
+    }
+
+    private void setBinaryEncoding(boolean binaryEncoding) {
+        mBinaryEncoding = binaryEncoding;
+        mMessageWriter = (binaryEncoding ? mCborWriter : mJsonWriter);
+    }
+
+    private void sendRekey() {
+        int epoch = mCrypto.requestRekey();
+
+        Log.d(TAG, "Rekeying (epoch " + epoch + ")");
+
+        try {
+            MessageWriter writer = mMessageWriter.reset()
+                    .beginObject()
+                    .name("type").value("rekey")
+                    .name("epoch").value(epoch)
+                    .endObject();
+
+            sendMessage(OutboundMessage.rekey(writer.toByteArray()));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to build message");
 
             e.printStackTrace();
         }
+    }
+
+    private void onRekey(int epoch) {
+        Log.d(TAG, "Server rekeyed (epoch " + epoch + ")");
+
+        if (!mCrypto.isRekeyPending() && mCrypto.getTxEpoch() < epoch) {
+            sendRekey();
+        }
+    }
+
+    private void checkRekey() {
+        if (mStatus != Constants.SERVICE.STATUS_CONNECTED || !mServerRekey || mCrypto == null) {
+            return;
+        }
+
+        if (mCrypto.shouldRekey()) {
+            sendRekey();
+        }
 
-        return false;
+        mConnectionState.schedule(mCheckRekey, Constants.CRYPTO.REKEY_CHECK_INTERVAL);
+    }
+
+    private void rekeyIfNeeded() {
+        if (mStatus == Constants.SERVICE.STATUS_CONNECTED
+                && mServerRekey
+                && mCrypto != null
+                && mCrypto.shouldRekey()) {
+            sendRekey();
+        }
+    }
+
+    private void sendPong(long id) {
+        try {
+            MessageWriter writer = mMessageWriter.reset()
+                    .beginObject()
+                    .name("type").value("pong")
+                    .name("id").value(id)
+                    .endObject();
+
+            sendMessage(OutboundMessage.create(Constants.PRIORITY.CONTROL, writer.toByteArray()));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to build message");
+
+            e.printStackTrace();
+        }
     }
 
     private void onSocketConnect() {
@@ -513,6 +999,10 @@ public class ConnectionService extends Service {
 
         Log.d(TAG, "Socket connected");
 
+        if (!mConnectionState.handle(ConnectionStateMachine.Event.SOCKET_CONNECTED)) {
+            return;
+        }
+
         handshakePhase1();
     }
 
@@ -523,14 +1013,28 @@ public class ConnectionService extends Service {
 
         Log.d(TAG, "Handshake successful");
 
-        mMainHandler.removeCallbacks(mHandshakeTimeout);
-
-        mRetryAttempt = 0;
+        if (!mConnectionState.handle(ConnectionStateMachine.Event.HANDSHAKE_DONE)) {
+            onSocketHandshakeFail(getString(R.string.handshake_failed));
+            return;
+        }
 
-        mHandshakeDone = true;
+        mConnectionState.schedule(mConnectionStable, Constants.RECONNECT.STABLE_PERIOD);
 
         mStatus = Constants.SERVICE.STATUS_CONNECTED;
 
+        mSessionGeneration = mTransport.getGeneration();
+        mSessionOpen = true;
+
+        mTransport.setFragmenting(mFragments);
+
+        if (mServerHeartbeat) {
+            mHeartbeat.start(mHeartbeatInterval);
+        }
+
+        if (mServerRekey) {
+            mConnectionState.schedule(mCheckRekey, Constants.CRYPTO.REKEY_CHECK_INTERVAL);
+        }
+
         broadcastStatus();
 
         updateForegroundNotification(buildForegroundNotification());
@@ -545,11 +1049,13 @@ public class ConnectionService extends Service {
 
         dismissHandshakePrompt();
 
-        mRetryAttempt = 0;
+        mReconnectPolicy.reset();
+
+        mSessionTicket = null;
 
         disconnect(message);
 
-        mMainHandler.postDelayed(() -> {
+        mControlHandler.postDelayed(() -> {
             if (mWakeLock.isHeld()) {
                 mWakeLock.release();
             }
@@ -565,10 +1071,12 @@ public class ConnectionService extends Service {
 
         e.printStackTrace();
 
-        if (mRetryAttempt >= Constants.MAX_RETRY) {
+        if (!mRetryForever && mReconnectPolicy.getAttempt() >= Constants.MAX_RETRY) {
+            mReconnectPolicy.reset();
+
             disconnect(getString(R.string.connection_failed));
 
-            mMainHandler.postDelayed(() -> {
+            mControlHandler.postDelayed(() -> {
                 if (mWakeLock.isHeld()) {
                     mWakeLock.release();
                 }
@@ -584,23 +1092,19 @@ public class ConnectionService extends Service {
 
         updateForegroundNotification(buildForegroundNotification());
 
-        if (!mRetryForever) {
-            mRetryAttempt++;
-
-            if (mRetryAttempt == Integer.MAX_VALUE) {
-                mRetryAttempt = 0;
-            }
-        }
-
-        mMainHandler.postDelayed(mConnect, 5000);
+        scheduleReconnect();
     }
 
     private void onSocketDisconnect(Exception e) {
+        onSocketDisconnect(e, getString(R.string.connection_lost_retry));
+    }
+
+    private void onSocketDisconnect(Exception e, String message) {
         if (mStatus == Constants.SERVICE.STATUS_STOPPED) {
             return;
         }
 
-        if (!mHandshakeDone) {
+        if (!mConnectionState.is(ConnectionStateMachine.State.CONNECTED)) {
             onSocketHandshakeFail(getString(R.string.handshake_failed));
             return;
         }
@@ -615,115 +1119,122 @@ public class ConnectionService extends Service {
 
         mStatus = Constants.SERVICE.STATUS_CONNECTING;
 
-        broadcastStatus(getString(R.string.connection_lost_retry));
+        broadcastStatus(message);
 
         updateForegroundNotification(buildForegroundNotification());
 
-        mMainHandler.postDelayed(mConnect, 10000);
+        scheduleReconnect();
     }
 
-    private void onSocketMessage(String data) {
-        if (mStatus == Constants.SERVICE.STATUS_STOPPED) {
-            return;
-        }
+    private void onDecryptionFail(Exception e) {
+        if (mConnectionState.is(ConnectionStateMachine.State.CONNECTED)) {
+            Log.e(TAG, "Decryption failed");
 
-        Log.d(TAG, "Message received");
+            e.printStackTrace();
 
-        if (data.startsWith("@@")) {
-            handshakePhase2(data.substring(2));
-            return;
+            if (mCrypto != null && mCrypto.isStreaming()) {
+                onSocketDisconnect(e);
+            }
+        } else {
+            onSocketHandshakeFail(getString(R.string.handshake_failed));
         }
+    }
 
-        if (mCrypto == null) {
-            Log.w(TAG, "Encryption not available");
-            return;
-        }
+    private void onHandshakeReply(JSONObject message) {
+        if (message.optBoolean("success", false)) {
+            mBinaryFraming = message.optBoolean("binary_framing", false);
+            mBatching = message.optBoolean("batch", false);
+            mFragments = (mBinaryFraming && message.optBoolean("fragments", false));
+            mServerHeartbeat = message.optBoolean("heartbeat", false);
+            mServerRekey = message.optBoolean("rekey", false);
 
-        String decrypted;
+            setBinaryEncoding(Constants.ENCODING.CBOR.equals(
+                    message.optString("encoding", Constants.ENCODING.JSON)));
 
-        try {
-            decrypted = mCrypto.decrypt(data);
-        } catch (Exception e) {
-            if (mHandshakeDone) {
-                Log.e(TAG, "Decryption failed");
+            try {
+                if (message.has("compression")) {
+                    mCrypto.setCompression(message.getString("compression"));
+                }
+
+                if (message.has("cipher_suite")) {
+                    mCrypto.setCipherSuite(message.getString("cipher_suite"));
+                }
 
+                if (message.optBoolean("stream_cipher", false)) {
+                    mCrypto.startStream(
+                            mStreamHeader,
+                            Encoder.HEX.decode(message.getString("stream_header")));
+                }
+            } catch (Exception e) {
                 e.printStackTrace();
-            } else {
+
                 onSocketHandshakeFail(getString(R.string.handshake_failed));
+                return;
             }
-            return;
-        }
 
-        try {
-            JSONObject message = new JSONObject(decrypted);
+            Log.d(TAG, "Cipher suite: " + mCrypto.getCipherSuite());
 
-            String type = message.getString("type");
-
-            if (type == null) {
-                throw new JSONException("Missing type property");
-            }
+            onSocketHandshakeSuccess();
+        } else {
+            onSocketHandshakeFail(getString(R.string.handshake_failed));
+        }
+    }
 
-            if (!mHandshakeDone) {
-                if (type.equals("handshake")) {
-                    if (message.getBoolean("success")) {
-                        onSocketHandshakeSuccess();
-                    } else {
-                        onSocketHandshakeFail(getString(R.string.handshake_failed));
-                    }
-                    return;
-                }
+    private void onCommand(InboundCommand command) {
+        if (mStatus == Constants.SERVICE.STATUS_STOPPED) {
+            return;
+        }
 
-                Log.d(TAG, "Ignoring message, handshake pending");
-                return;
+        if (command.type == InboundCommand.TYPE_HANDSHAKE) {
+            if (!mConnectionState.is(ConnectionStateMachine.State.CONNECTED)) {
+                onHandshakeReply(command.handshake);
             }
 
-            switch (type) {
-                case "list_notifications":
-                    listNotifications();
-                    break;
+            mDecoder.resume();
+            return;
+        }
 
-                case "dismiss_notification":
-                    String key = message.getString("key");
+        if (!mConnectionState.is(ConnectionStateMachine.State.CONNECTED)) {
+            Log.d(TAG, "Ignoring message, handshake pending");
+            return;
+        }
 
-                    if (key != null) {
-                        dismissNotifications(key);
-                    }
-                    break;
+        switch (command.type) {
+            case InboundCommand.TYPE_PING:
+                sendPong(command.id);
+                break;
 
-                case "list_sms":
-                    listSMS();
-                    break;
+            case InboundCommand.TYPE_PONG:
+                mHeartbeat.onPong(command.id);
+                break;
 
-                case "list_sms_from":
-                    String number = message.getString("number");
-                    int page = 0;
+            case InboundCommand.TYPE_REKEY:
+                onRekey(command.epoch);
+                break;
 
-                    if (message.has("page")) {
-                        page = message.getInt("page");
-                    }
+            case InboundCommand.TYPE_SESSION_TICKET:
+                onSessionTicket(command.ticket, command.lifetime);
+                break;
 
-                    if (number != null && page >= 0) {
-                        listSMSFromNumber(number, page);
-                    }
-                    break;
+            case InboundCommand.TYPE_LIST_NOTIFICATIONS:
+                listNotifications(command.id);
+                break;
 
-                case "send_sms":
-                    String destination = message.getString("destination");
-                    String body = message.getString("body");
+            case InboundCommand.TYPE_DISMISS_NOTIFICATION:
+                dismissNotifications(command.key);
+                break;
 
-                    if (destination != null && body != null) {
-                        sendSMS(destination, body);
-                    }
-                    break;
+            case InboundCommand.TYPE_LIST_SMS:
+                listSMS(command.id);
+                break;
 
-                default:
-                    Log.w(TAG, "Unknown message type: " + type);
-                    break;
-            }
-        } catch (JSONException e) {
-            Log.e(TAG, "Invalid message");
+            case InboundCommand.TYPE_LIST_SMS_FROM:
+                listSMSFromNumber(command.number, command.page, command.id);
+                break;
 
-            e.printStackTrace();
+            case InboundCommand.TYPE_SEND_SMS:
+                sendSMS(command.destination, command.body, command.id);
+                break;
         }
     }
 
@@ -770,7 +1281,22 @@ public class ConnectionService extends Service {
             throw new Exception(getString(R.string.missing_secret_key));
         }
 
+        String[] serverAddresses = MainActivity.splitServerAddresses(Objects.requireNonNull(serverAddress));
+
+        if (serverAddresses.length == 0) {
+            throw new Exception(getString(R.string.missing_server_address));
+        }
+
         mServerAddress = serverAddress;
+        mServerAddresses = serverAddresses;
+
+        try {
+            mHeartbeatInterval = 1000L * Integer.parseInt(Objects.requireNonNull(mSharedPreferences.getString(
+                    "heartbeat_interval",
+                    Constants.DEFAULT.HEARTBEAT_INTERVAL)));
+        } catch (NumberFormatException e) {
+            mHeartbeatInterval = 1000L * Integer.parseInt(Constants.DEFAULT.HEARTBEAT_INTERVAL);
+        }
 
         mRetryForever = mSharedPreferences.getBoolean(
                 "retry_forever",
@@ -801,7 +1327,7 @@ public class ConnectionService extends Service {
             return;
         }
 
-        mMainHandler.removeCallbacks(mCheckNotificationService);
+        mControlHandler.removeCallbacks(mCheckNotificationService);
 
         if (!mFeatureNotifications || !MainActivity.isNotificationListenerEnabled(this)) {
             return;
@@ -814,17 +1340,26 @@ public class ConnectionService extends Service {
 
             startService(intent);
 
-            mMainHandler.postDelayed(mCheckNotificationService, Constants.NOTIFICATION.SERVICE_CHECK_INTERVAL);
+            mControlHandler.postDelayed(mCheckNotificationService, Constants.NOTIFICATION.SERVICE_CHECK_INTERVAL);
         }
     }
 
-    private void listNotifications() {
+    private void listNotifications(long id) {
         if (!mFeatureNotifications || !MainActivity.isNotificationListenerEnabled(this)) {
             return;
         }
 
-        if (mBroadcastManager != null) {
-            mBroadcastManager.sendBroadcast(new Intent(Constants.INTENT.NOTIFICATION_LIST_REQUEST));
+        SingleFlight.Flight flight = mRequestFlights.join("list_notifications", id);
+
+        if (flight == null) {
+            return;
+        }
+
+        mNotificationListFlight = flight;
+
+        if (mBroadcastManager == null
+                || !mBroadcastManager.sendBroadcast(new Intent(Constants.INTENT.NOTIFICATION_LIST_REQUEST))) {
+            mRequestFlights.complete(flight);
         }
     }
 
@@ -842,11 +1377,37 @@ public class ConnectionService extends Service {
         }
     }
 
-    private void listSMS() {
+    private void listSMS(long id) {
         if (!mFeatureSMS || !MainActivity.hasSMSPermissions(this)) {
             return;
         }
 
+        SingleFlight.Flight flight = mRequestFlights.join("list_sms", id);
+
+        if (flight == null) {
+            return;
+        }
+
+        int generation = mSessionGeneration;
+
+        submitQuery(flight, signal -> querySMS(signal, generation, flight));
+    }
+
+    private void submitQuery(SingleFlight.Flight flight, QueryExecutor.Query query) {
+        boolean submitted = mQueryExecutor.submit(signal -> {
+            try {
+                query.run(signal);
+            } finally {
+                mRequestFlights.complete(flight);
+            }
+        });
+
+        if (!submitted) {
+            mRequestFlights.complete(flight);
+        }
+    }
+
+    private void querySMS(CancellationSignal signal, int generation, SingleFlight.Flight flight) {
         String sort = (Telephony.Sms.DATE + " DESC LIMIT 200");
 
         Cursor cursor = ContentResolverCompat.query(
@@ -861,69 +1422,95 @@ public class ConnectionService extends Service {
                 null,
                 null,
                 sort,
-                null);
+                signal);
 
-        JSONArray array = new JSONArray();
+        MessageWriter writer = createMessageWriter();
+        SimpleDateFormat dateFormatter = createDateFormatter();
 
-        if (cursor != null) {
-            HashSet<String> seenNumbers = new HashSet<>();
+        try {
+            ArrayList<SMS> results = new ArrayList<>();
 
-            while (cursor.moveToNext()) {
-                SMS result = parseSMS(cursor);
+            if (cursor != null) {
+                HashSet<String> seenNumbers = new HashSet<>();
 
-                if (result == null) {
-                    continue;
-                }
+                while (cursor.moveToNext()) {
+                    signal.throwIfCanceled();
 
-                if (seenNumbers.contains(result.number)) {
-                    continue;
-                }
+                    SMS result = parseSMS(cursor, dateFormatter, signal);
 
-                seenNumbers.add(result.number);
+                    if (result == null) {
+                        continue;
+                    }
 
-                JSONObject sms = new JSONObject();
+                    if (seenNumbers.contains(result.number)) {
+                        continue;
+                    }
 
-                try {
-                    sms.put("type", result.type)
-                            .put("name", result.name)
-                            .put("number", result.number)
-                            .put("body", result.body)
-                            .put("date", result.date);
-                } catch (JSONException e) {
-                    e.printStackTrace();
+                    seenNumbers.add(result.number);
+                    results.add(result);
 
-                    continue;
+                    if (seenNumbers.size() >= Constants.SMS_LIST_MAX) {
+                        break;
+                    }
                 }
+            }
 
-                array.put(sms);
+            for (long id : mRequestFlights.complete(flight)) {
+                writer.reset()
+                        .beginObject()
+                        .name("type").value("sms_list");
 
-                if (array.length() >= Constants.SMS_LIST_MAX) {
-                    break;
-                }
-            }
+                writeRequestId(writer, id);
 
-            cursor.close();
-        }
+                writer.name("list").beginArray();
 
-        try {
-            JSONObject message = new JSONObject();
+                for (SMS result : results) {
+                    writer.beginObject()
+                            .name("type").value(result.type);
 
-            message.put("type", "sms_list");
-            message.put("list", array);
+                    if (result.name != null) {
+                        writer.name("name").value(result.name);
+                    }
 
-            sendJsonMessage(message);
-        } catch (JSONException e) {
+                    writer.name("number").value(result.number)
+                            .name("body").value(result.body)
+                            .name("date").value(result.date)
+                            .endObject();
+                }
+
+                writer.endArray().endObject();
+
+                sendSessionMessage(OutboundMessage.create(Constants.PRIORITY.BULK, writer.toByteArray()), generation);
+            }
+        } catch (IOException e) {
             Log.e(TAG, "Failed to build message");
 
             e.printStackTrace();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
     }
 
-    private void listSMSFromNumber(String number, int page) {
+    private void listSMSFromNumber(String number, int page, long id) {
         if (!mFeatureSMS || !MainActivity.hasSMSPermissions(this)) {
             return;
         }
 
+        SingleFlight.Flight flight = mRequestFlights.join("list_sms_from:" + page + ":" + number, id);
+
+        if (flight == null) {
+            return;
+        }
+
+        int generation = mSessionGeneration;
+
+        submitQuery(flight, signal -> querySMSFromNumber(signal, generation, number, page, flight));
+    }
+
+    private void querySMSFromNumber(CancellationSignal signal, int generation, String number, int page,
+                                    SingleFlight.Flight flight) {
         TelephonyManager telephonyManager = (TelephonyManager)getSystemService(
                 Context.TELEPHONY_SERVICE);
 
@@ -953,6 +1540,8 @@ public class ConnectionService extends Service {
                 + " OFFSET "
                 + (page * Constants.SMS_PER_PAGE));
 
+        ContactInfo contact = getContactInfo(number, signal);
+
         Cursor cursor = ContentResolverCompat.query(
                 getContentResolver(),
                 Telephony.Sms.CONTENT_URI,
@@ -965,74 +1554,110 @@ public class ConnectionService extends Service {
                 selection.toString(),
                 variations,
                 sort,
-                null);
+                signal);
 
-        ContactInfo contact = getContactInfo(number);
+        MessageWriter writer = createMessageWriter();
+        SimpleDateFormat dateFormatter = createDateFormatter();
 
-        JSONArray array = new JSONArray();
+        try {
+            ArrayList<SMS> results = new ArrayList<>();
 
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                SMS result = parseSMS(cursor, contact);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    signal.throwIfCanceled();
 
-                if (result == null) {
-                    continue;
-                }
+                    SMS result = parseSMS(cursor, contact, dateFormatter, signal);
 
-                if (contact == null) {
-                    contact = new ContactInfo();
+                    if (result == null) {
+                        continue;
+                    }
+
+                    if (contact == null) {
+                        contact = new ContactInfo();
+
+                        contact.name = result.name;
+                        contact.number = result.number;
+                    }
 
-                    contact.name = result.name;
-                    contact.number = result.number;
+                    results.add(result);
                 }
+            }
 
-                JSONObject sms = new JSONObject();
+            for (long id : mRequestFlights.complete(flight)) {
+                writer.reset()
+                        .beginObject()
+                        .name("type").value("sms_from_list");
 
-                try {
-                    sms.put("type", result.type)
-                            .put("body", result.body)
-                            .put("date", result.date);
-                } catch (JSONException e) {
-                    e.printStackTrace();
+                writeRequestId(writer, id);
 
-                    continue;
+                writer.name("page").value(page)
+                        .name("list").beginArray();
+
+                for (SMS result : results) {
+                    writer.beginObject()
+                            .name("type").value(result.type)
+                            .name("body").value(result.body)
+                            .name("date").value(result.date)
+                            .endObject();
                 }
 
-                array.put(sms);
-            }
+                writer.endArray();
 
-            cursor.close();
-        }
+                if (contact == null) {
+                    writer.name("number").value(number);
+                } else {
+                    if (contact.name != null) {
+                        writer.name("name").value(contact.name);
+                    }
 
-        try {
-            JSONObject message = new JSONObject();
+                    writer.name("number").value(contact.number);
+                }
 
-            message.put("type", "sms_from_list");
+                writer.endObject();
 
-            if (contact == null) {
-                message.put("name", null)
-                        .put("number", number);
-            } else {
-                message.put("name", contact.name)
-                        .put("number", contact.number);
+                sendSessionMessage(OutboundMessage.create(Constants.PRIORITY.BULK, writer.toByteArray()), generation);
             }
-
-            message.put("page", page);
-            message.put("list", array);
-
-            sendJsonMessage(message);
-        } catch (JSONException e) {
+        } catch (IOException e) {
             Log.e(TAG, "Failed to build message");
 
             e.printStackTrace();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static void writeRequestId(MessageWriter writer, long id) throws IOException {
+        if (id != InboundCommand.NO_ID) {
+            writer.name("id").value(id);
+        }
+    }
+
+    private static void writeNotification(MessageWriter writer, NotificationRecord notification)
+            throws IOException {
+        writer.beginObject()
+                .name("key").value(notification.key)
+                .name("app_name").value(notification.appName)
+                .name("title").value(notification.title);
+
+        if (notification.text != null) {
+            writer.name("text").value(notification.text);
+        }
+
+        if (notification.persistent) {
+            writer.name("persistent").value(true);
         }
+
+        writer.endObject();
     }
 
-    private SMS parseSMS(Cursor cursor) {
-        return parseSMS(cursor, null);
+    private SMS parseSMS(Cursor cursor, SimpleDateFormat dateFormatter, CancellationSignal signal) {
+        return parseSMS(cursor, null, dateFormatter, signal);
     }
 
-    private SMS parseSMS(Cursor cursor, ContactInfo contact) {
+    private SMS parseSMS(Cursor cursor, ContactInfo contact, SimpleDateFormat dateFormatter,
+                         CancellationSignal signal) {
         SMS message = new SMS();
 
         try {
@@ -1053,7 +1678,7 @@ public class ConnectionService extends Service {
             message.number = cursor.getString(cursor.getColumnIndexOrThrow(Telephony.Sms.ADDRESS));
 
             if (contact == null) {
-                contact = getContactInfo(message.number);
+                contact = getContactInfo(message.number, signal);
 
                 if (contact == null) {
                     message.name = null;
@@ -1069,7 +1694,7 @@ public class ConnectionService extends Service {
             message.body = cursor.getString(
                     cursor.getColumnIndexOrThrow(Telephony.Sms.BODY)).trim();
 
-            message.date = mDateFormatter.format(new Date(cursor.getLong(
+            message.date = dateFormatter.format(new Date(cursor.getLong(
                     cursor.getColumnIndexOrThrow(Telephony.Sms.DATE))));
         } catch (Exception e) {
             e.printStackTrace();
@@ -1080,7 +1705,7 @@ public class ConnectionService extends Service {
         return message;
     }
 
-    private void sendSMS(String destination, String body) {
+    private void sendSMS(String destination, String body, long id) {
         if (!mFeatureSMS || !MainActivity.hasSMSPermissions(this)) {
             return;
         }
@@ -1094,12 +1719,13 @@ public class ConnectionService extends Service {
         Intent smsSentIntent = new Intent(Constants.INTENT.SMS_SENT);
         smsSentIntent.putExtra("number", destination);
         smsSentIntent.putExtra("body", body);
+        smsSentIntent.putExtra("id", id);
 
         smsManager.sendTextMessage(
                 destination,
                 null,
                 body,
-                PendingIntent.getBroadcast(this, 0, smsSentIntent, PendingIntent.FLAG_UPDATE_CURRENT),
+                PendingIntent.getBroadcast(this, mSmsRequestCode++, smsSentIntent, PendingIntent.FLAG_UPDATE_CURRENT),
                 null);
     }
 
@@ -1125,6 +1751,11 @@ public class ConnectionService extends Service {
         Intent statusIntent = new Intent(Constants.INTENT.STATUS_NOTIFICATION);
         statusIntent.putExtra("status", mStatus);
 
+        if (mStatus == Constants.SERVICE.STATUS_CONNECTED && mHeartbeat != null) {
+            statusIntent.putExtra("rtt", mHeartbeat.getRtt());
+            statusIntent.putExtra("missed_pongs", mHeartbeat.getMissedCount());
+        }
+
         if (message != null) {
             statusIntent.putExtra("message", message);
         }
@@ -1336,7 +1967,7 @@ public class ConnectionService extends Service {
                 Constants.NOTIFICATION.CHANNEL_HANDSHAKE);
     }
 
-    private ContactInfo getContactInfo(String number) {
+    private ContactInfo getContactInfo(String number, CancellationSignal signal) {
         Uri uri = Uri.withAppendedPath(
                 ContactsContract.PhoneLookup.CONTENT_FILTER_URI,
                 Uri.encode(number));
@@ -1351,11 +1982,15 @@ public class ConnectionService extends Service {
                 null,
                 null,
                 null,
-                null);
+                signal);
 
         ContactInfo contactInfo = null;
 
-        if (cursor != null) {
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
             if (cursor.moveToFirst()) {
                 contactInfo = new ContactInfo();
 
@@ -1365,13 +2000,18 @@ public class ConnectionService extends Service {
                 contactInfo.number = cursor.getString(
                         cursor.getColumnIndexOrThrow(ContactsContract.PhoneLookup.NUMBER));
             }
-
+        } finally {
             cursor.close();
         }
 
         return contactInfo;
     }
 
+    @SuppressLint("SimpleDateFormat")
+    private static SimpleDateFormat createDateFormatter() {
+        return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    }
+
     private String[] getPossibleNumberVariations(String number, String country) {
         HashSet<String> results = new HashSet<>();
 
@@ -1425,95 +2065,115 @@ public class ConnectionService extends Service {
         String number;
     }
 
+    private class ConnectionStateListener implements ConnectionStateMachine.Listener {
+        @Override
+        public void onTransition(ConnectionStateMachine.State from, ConnectionStateMachine.State to,
+                                 long timeInState) {
+            Log.d(TAG, from + " -> " + to + " after " + timeInState + " ms");
+
+            if (to == ConnectionStateMachine.State.CONNECTED) {
+                Log.d(TAG, "Connected in " + mConnectionState.getLastConnectDuration() + " ms");
+            }
+        }
+
+        @Override
+        public void onRejected(ConnectionStateMachine.Event event, ConnectionStateMachine.State state) {
+            Log.w(TAG, "Ignoring " + event + " while " + state);
+        }
+    }
+
     private class StatusRequestReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            broadcastStatus(true);
+            mCommandHandler.post(() -> broadcastStatus(true));
         }
     }
 
-    private class NotificationListReceiver extends BroadcastReceiver {
+    // Runs on the notification event thread, so it keeps its own writers and
+    // only touches volatile session state.
+    private class NotificationListener implements NotificationEvents.Listener {
+        private final MessageWriter mJsonEventWriter = new JsonMessageWriter();
+        private final MessageWriter mCborEventWriter = new CborMessageWriter();
+
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (mStatus == Constants.SERVICE.STATUS_CONNECTED) {
-                String notifications = intent.getStringExtra("notifications");
+        public void onNotificationReceived(NotificationRecord notification) {
+            sendNotification("notification_received", OutboundMessage.TYPE_NOTIFICATION_RECEIVED, notification);
+        }
 
-                if (notifications == null) {
-                    return;
-                }
+        @Override
+        public void onNotificationRemoved(NotificationRecord notification) {
+            sendNotification("notification_removed", OutboundMessage.TYPE_NOTIFICATION_REMOVED, notification);
+        }
 
-                try {
-                    JSONArray array = new JSONArray(notifications);
+        @Override
+        public void onNotificationList(List<NotificationRecord> notifications) {
+            long[] ids = mRequestFlights.complete(mNotificationListFlight);
 
-                    JSONObject message = new JSONObject();
+            if (!mSessionOpen) {
+                return;
+            }
 
-                    message.put("type", "notification_list");
-                    message.put("list", array);
+            int generation = mSessionGeneration;
 
-                    sendJsonMessage(message);
-                } catch (JSONException e) {
-                    Log.e(TAG, "Failed to build message");
+            ArrayList<String> keys = new ArrayList<>();
 
-                    e.printStackTrace();
-                }
+            for (NotificationRecord notification : notifications) {
+                keys.add(notification.key);
             }
-        }
-    }
-
-    private class NotificationReceivedReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (mStatus == Constants.SERVICE.STATUS_CONNECTED) {
-                String notification = intent.getStringExtra("notification");
 
-                if (notification == null) {
-                    return;
-                }
+            try {
+                for (long id : ids) {
+                    MessageWriter writer = getWriter()
+                            .beginObject()
+                            .name("type").value("notification_list");
 
-                try {
-                    JSONObject object = new JSONObject(notification);
+                    writeRequestId(writer, id);
 
-                    JSONObject message = new JSONObject();
+                    writer.name("list").beginArray();
 
-                    message.put("type", "notification_received");
-                    message.put("notification", object);
+                    for (NotificationRecord notification : notifications) {
+                        writeNotification(writer, notification);
+                    }
 
-                    sendJsonMessage(message);
-                } catch (JSONException e) {
-                    Log.e(TAG, "Failed to build message");
+                    writer.endArray().endObject();
 
-                    e.printStackTrace();
+                    sendSessionMessage(OutboundMessage.notificationList(keys, writer.toByteArray()), generation);
                 }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to build message");
+
+                e.printStackTrace();
             }
         }
-    }
 
-    private class NotificationRemovedReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (mStatus == Constants.SERVICE.STATUS_CONNECTED) {
-                String notification = intent.getStringExtra("notification");
+        private void sendNotification(String type, int messageType, NotificationRecord notification) {
+            if (!mSessionOpen) {
+                return;
+            }
 
-                if (notification == null) {
-                    return;
-                }
+            int generation = mSessionGeneration;
 
-                try {
-                    JSONObject object = new JSONObject(notification);
+            try {
+                MessageWriter writer = getWriter()
+                        .beginObject()
+                        .name("type").value(type)
+                        .name("notification");
 
-                    JSONObject message = new JSONObject();
+                writeNotification(writer, notification);
 
-                    message.put("type", "notification_removed");
-                    message.put("notification", object);
+                writer.endObject();
 
-                    sendJsonMessage(message);
-                } catch (JSONException e) {
-                    Log.e(TAG, "Failed to build message");
+                sendSessionMessage(OutboundMessage.notification(messageType, notification.key, writer.toByteArray()), generation);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to build message");
 
-                    e.printStackTrace();
-                }
+                e.printStackTrace();
             }
         }
+
+        private MessageWriter getWriter() throws IOException {
+            return (mBinaryEncoding ? mCborEventWriter : mJsonEventWriter).reset();
+        }
     }
 
     private class SmsSentReceiver extends BroadcastReceiver {
@@ -1528,21 +2188,25 @@ public class ConnectionService extends Service {
                 }
 
                 try {
-                    JSONObject sms = new JSONObject();
-
-                    sms.put("type", "out")
-                            .put("body", body)
-                            .put("date", mDateFormatter.format(new Date()));
-
-                    JSONObject message = new JSONObject();
-
-                    message.put("type", "sms_sent")
-                            .put("number", number)
-                            .put("success", (getResultCode() == Activity.RESULT_OK))
-                            .put("sms", sms);
-
-                    sendJsonMessage(message);
-                } catch (JSONException e) {
+                    MessageWriter writer = mMessageWriter.reset()
+                            .beginObject()
+                            .name("type").value("sms_sent");
+
+                    writeRequestId(writer, intent.getLongExtra("id", InboundCommand.NO_ID));
+
+                    writer.name("number").value(number)
+                            .name("success").value(getResultCode() == Activity.RESULT_OK)
+                            .name("sms").beginObject()
+                            .name("type").value("out")
+                            .name("body").value(body)
+                            .name("date").value(mDateFormatter.format(new Date()))
+                            .endObject()
+                            .endObject();
+
+                    sendMessage(OutboundMessage.create(
+                            Constants.PRIORITY.INTERACTIVE,
+                            writer.toByteArray()));
+                } catch (IOException e) {
                     Log.e(TAG, "Failed to build message");
 
                     e.printStackTrace();
@@ -1551,212 +2215,375 @@ public class ConnectionService extends Service {
         }
     }
 
-    private class ConnectionHandler extends Handler {
-        private static final String TAG = "ConnectionWriterThread";
+    // Frames are sealed into Crypto's scratch buffers by encode() and copied
+    // once, by writeFrame(), into the buffer the transport writes from.
+    private class MessageEncoder implements ConnectionTransport.Encoder {
+        private byte[] mBatch = new byte[Constants.CRYPTO.BUFFER_SIZE];
+
+        private Crypto mSealedCrypto;
+        private int mSealedSize;
+        private byte[] mText;
+
+        @Override
+        public int encode(OutboundMessage message) {
+            if (message.raw) {
+                return text(message.payload);
+            }
 
-        private String mServerAddress;
-        private int mServerPort;
+            Crypto crypto = mCrypto;
 
-        private Socket mSocket;
-        private BufferedWriter mBufferedWriter;
+            if (crypto == null) {
+                return -1;
+            }
 
-        private volatile boolean mConnected;
-        private volatile boolean mStop;
+            int size = seal(crypto, message.payload, message.payload.length);
 
-        ConnectionHandler(String serverAddress, int serverPort, Looper looper) {
-            super(looper);
+            if (size >= 0 && message.type == OutboundMessage.TYPE_REKEY) {
+                crypto.rekeyTx();
+            }
 
-            mServerAddress = serverAddress;
-            mServerPort = serverPort;
-            mStop = false;
-            mConnected = false;
+            return size;
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case Constants.MESSAGE.CONNECT:
-                    connect();
-                    break;
+        public int encode(List<OutboundMessage> messages) {
+            Crypto crypto = mCrypto;
 
-                case Constants.MESSAGE.DISCONNECT:
-                    disconnect();
-                    break;
+            if (!mBatching || crypto == null) {
+                return -1;
+            }
 
-                case Constants.MESSAGE.MESSAGE:
-                    String message = (String)msg.obj;
+            byte[] prefix = (mBinaryEncoding ? CborMessageWriter.BATCH_PREFIX : JsonMessageWriter.BATCH_PREFIX);
+            byte[] separator = (mBinaryEncoding ? CborMessageWriter.BATCH_SEPARATOR : JsonMessageWriter.BATCH_SEPARATOR);
+            byte[] suffix = (mBinaryEncoding ? CborMessageWriter.BATCH_SUFFIX : JsonMessageWriter.BATCH_SUFFIX);
 
-                    if (message != null) {
-                        sendMessage(message);
-                    }
-                    break;
+            int length = append(0, prefix, prefix.length);
 
-                case Constants.MESSAGE.READ_THREAD_EXIT:
-                    if (mConnected) {
-                        disconnect();
+            for (int i = 0; i < messages.size(); i++) {
+                OutboundMessage message = messages.get(i);
 
-                        if (!mStop) {
-                            Exception exception = (Exception)msg.obj;
+                if (message.raw || message.type == OutboundMessage.TYPE_REKEY) {
+                    return -1;
+                }
 
-                            mMainHandler.post(() -> onSocketDisconnect(exception));
-                        }
-                    }
-                    break;
+                if (i > 0) {
+                    length = append(length, separator, separator.length);
+                }
+
+                length = append(length, message.payload, message.payload.length);
             }
-        }
 
-        void stop() {
-            mStop = true;
+            length = append(length, suffix, suffix.length);
+
+            return seal(crypto, mBatch, length);
         }
 
-        private void connect() {
-            if (mConnected || mStop) {
+        @Override
+        public void writeFrame(ByteBuffer output) {
+            if (mText != null) {
+                output.put(mText);
+                output.put((byte)'\n');
+
+                mText = null;
                 return;
             }
 
-            Log.d(TAG, "Connecting socket");
+            output.putInt(mSealedSize);
 
-            mSocket = new Socket();
+            mSealedCrypto.writeSealed(output);
 
-            try {
-                mSocket.setKeepAlive(true);
+            mSealedCrypto = null;
+        }
+
+        // Stream frames have implicit nonce counters, so they can only be
+        // opened in the order they were sealed.
+        @Override
+        public boolean isSequenced() {
+            Crypto crypto = mCrypto;
 
-                mSocket.connect(
-                        new InetSocketAddress(mServerAddress, mServerPort),
-                        Constants.SOCKET_TIMEOUT);
+            return (crypto != null && crypto.isStreaming());
+        }
 
-                if (mStop) {
-                    return;
-                }
+        private int append(int offset, byte[] data, int length) {
+            if (mBatch.length < offset + length) {
+                mBatch = Arrays.copyOf(mBatch, Math.max(offset + length, mBatch.length * 2));
+            }
 
-                mConnected = true;
+            System.arraycopy(data, 0, mBatch, offset, length);
 
-                mBufferedWriter = new BufferedWriter(new OutputStreamWriter(
-                        mSocket.getOutputStream(),
-                        StandardCharsets.UTF_8));
+            return (offset + length);
+        }
 
-                Log.d(TAG, "Starting reader thread");
+        private int text(byte[] data) {
+            mText = data;
 
-                ReaderThread readerThread = new ReaderThread("ConnectionReaderThread",
-                        new BufferedReader(new InputStreamReader(mSocket.getInputStream(),
-                                StandardCharsets.UTF_8)));
+            return (data.length + 1);
+        }
 
-                readerThread.start();
+        private int seal(Crypto crypto, byte[] data, int length) {
+            try {
+                if (mBinaryFraming) {
+                    mSealedSize = crypto.seal(data, length, Constants.TRANSPORT.MAX_MESSAGE_SIZE);
+                    mSealedCrypto = crypto;
+                    mText = null;
 
-                if (!mStop) {
-                    mMainHandler.post(ConnectionService.this::onSocketConnect);
+                    return (Constants.TRANSPORT.FRAME_HEADER_SIZE + mSealedSize);
                 }
+
+                return text(crypto.encryptToString(data, length).getBytes(StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                Log.d(TAG, "Encryption failed");
+
+                e.printStackTrace();
+            }
+
+            return -1;
+        }
+    }
+
+    private class HeartbeatListener implements Heartbeat.Listener {
+        @Override
+        public boolean sendPing(long id) {
+            try {
+                MessageWriter writer = mMessageWriter.reset()
+                        .beginObject()
+                        .name("type").value("ping")
+                        .name("id").value(id)
+                        .endObject();
+
+                return sendMessage(OutboundMessage.create(
+                        Constants.PRIORITY.CONTROL,
+                        writer.toByteArray()));
             } catch (IOException e) {
-                disconnect();
+                Log.e(TAG, "Failed to build message");
 
-                if (!mStop) {
-                    mMainHandler.post(() -> onSocketConnectFail(e));
-                }
+                e.printStackTrace();
             }
+
+            return false;
         }
 
-        private void disconnect() {
-            Log.d(TAG, "Disconnecting");
+        @Override
+        public void onPeerDead() {
+            Log.e(TAG, "Server not responding");
 
-            mConnected = false;
+            onSocketDisconnect(null, getString(R.string.connection_timeout_retry));
+        }
 
-            if (mBufferedWriter != null) {
-                try {
-                    mBufferedWriter.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        @Override
+        public void onRttUpdate() {
+            broadcastStatus();
+        }
+    }
+
+    private class NetworkCallback extends ConnectivityManager.NetworkCallback {
+        @Override
+        public void onAvailable(Network network) {
+            mCommandHandler.post(() -> onNetworkAvailable(network));
+        }
+
+        @Override
+        public void onLost(Network network) {
+            mCommandHandler.post(() -> onNetworkLost(network));
+        }
+    }
+
+    // Runs on the decode thread. Frames that change the session keys or the
+    // encoding pause decoding until the control thread has applied them.
+    private class InboundDecoder {
+        private final Handler mHandler;
+        private final ArrayDeque<Object> mPendingFrames = new ArrayDeque<>();
+
+        private boolean mPaused;
+
+        InboundDecoder(Looper looper) {
+            mHandler = new Handler(looper);
+        }
+
+        void post(Object frame) {
+            mHandler.post(() -> onFrame(frame));
+        }
+
+        void resume() {
+            mHandler.post(this::onResume);
+        }
+
+        void reset() {
+            mHandler.removeCallbacksAndMessages(null);
 
-                mBufferedWriter = null;
+            mHandler.post(() -> {
+                mPaused = false;
+                mPendingFrames.clear();
+            });
+        }
+
+        private void onFrame(Object frame) {
+            if (mPaused) {
+                mPendingFrames.add(frame);
+                return;
             }
 
-            if (mSocket != null) {
-                try {
-                    mSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            decode(frame);
+        }
 
-                mSocket = null;
+        private void onResume() {
+            mPaused = false;
+
+            Object frame;
+
+            while (!mPaused && (frame = mPendingFrames.poll()) != null) {
+                decode(frame);
             }
         }
 
-        private void sendMessage(String message) {
-            Log.d(TAG, "Sending message");
+        private void decode(Object frame) {
+            if (frame instanceof String) {
+                String data = (String)frame;
 
-            if (mConnected && !mStop && mBufferedWriter != null) {
-                try {
-                    mBufferedWriter.write(message);
-                    mBufferedWriter.newLine();
-                    mBufferedWriter.flush();
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to send message");
+                Log.d(TAG, "Message received");
 
-                    e.printStackTrace();
+                if (data.startsWith("@@")) {
+                    mPaused = true;
+
+                    mControlHandler.post(() -> {
+                        handshakePhase2(data.substring(2));
+                        resume();
+                    });
+                    return;
+                }
+
+                if (data.startsWith("@!")) {
+                    mPaused = true;
+
+                    mControlHandler.post(() -> {
+                        resumeSession(data.substring(2));
+                        resume();
+                    });
+                    return;
                 }
+            } else {
+                Log.d(TAG, "Binary message received");
             }
-        }
 
-        private class ReaderThread extends Thread {
-            private static final String TAG = "ConnectionReaderThread";
+            Crypto crypto = mCrypto;
+
+            if (crypto == null) {
+                Log.w(TAG, "Encryption not available");
+                return;
+            }
 
-            private BufferedReader mBufferedReader;
+            byte[] decrypted;
 
-            ReaderThread(String name, BufferedReader pBufferedReader) {
-                super(name);
+            try {
+                if (frame instanceof String) {
+                    decrypted = crypto.decryptFromString((String)frame);
+                } else {
+                    decrypted = crypto.decrypt((byte[])frame);
+                }
+            } catch (Exception e) {
+                if (crypto.isStreaming()) {
+                    mPaused = true;
+                }
 
-                mBufferedReader = pBufferedReader;
+                mControlHandler.post(() -> onDecryptionFail(e));
+                return;
             }
 
-            @Override
-            public void run() {
-                Log.d(TAG, "Thread started");
+            try {
+                if (mBinaryEncoding) {
+                    dispatch(crypto, CborMessageReader.read(decrypted));
+                } else {
+                    dispatch(crypto, new JSONObject(new String(decrypted, StandardCharsets.UTF_8)));
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Invalid message");
+
+                e.printStackTrace();
+            }
+        }
 
-                Exception socketException = null;
+        private void dispatch(Crypto crypto, JSONObject message) throws JSONException {
+            if (message.getString("type").equals("batch")) {
+                JSONArray messages = message.getJSONArray("messages");
 
-                try {
-                    while (mConnected && !mStop) {
-                        String message = mBufferedReader.readLine();
+                for (int i = 0; i < messages.length(); i++) {
+                    dispatch(crypto, messages.getJSONObject(i));
+                }
+                return;
+            }
 
-                        if (message == null) {
-                            break;
-                        }
+            dispatch(crypto, InboundCommand.parse(message), message.getString("type"));
+        }
 
-                        if (message.trim().length() < 1) {
-                            continue;
-                        }
+        @SuppressWarnings("unchecked")
+        private void dispatch(Crypto crypto, Map<String, Object> message) throws JSONException {
+            if ("batch".equals(message.get("type"))) {
+                Object messages = message.get("messages");
 
-                        if (!mStop) {
-                            mMainHandler.post(() -> onSocketMessage(message.trim()));
-                        }
-                    }
-                } catch (SocketException e) {
-                    socketException = e;
-                } catch (IOException e) {
-                    Log.e(TAG, "Read exception: " + e.getMessage());
+                if (!(messages instanceof List)) {
+                    throw new JSONException("Invalid batch");
                 }
 
-                if (mBufferedReader != null) {
-                    try {
-                        mBufferedReader.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                for (Object item : (List<Object>)messages) {
+                    if (!(item instanceof Map)) {
+                        throw new JSONException("Invalid batch");
                     }
 
-                    mBufferedReader = null;
+                    dispatch(crypto, (Map<String, Object>)item);
                 }
+                return;
+            }
+
+            dispatch(crypto, InboundCommand.parse(message), String.valueOf(message.get("type")));
+        }
 
-                if (mConnectionHandler != null) {
-                    Message exitMessage = Message.obtain(
-                            mConnectionHandler,
-                            Constants.MESSAGE.READ_THREAD_EXIT,
-                            socketException);
+        private void dispatch(Crypto crypto, InboundCommand command, String type) {
+            if (command == null) {
+                Log.w(TAG, "Unknown message type: " + type);
+                return;
+            }
 
-                    mConnectionHandler.sendMessage(exitMessage);
-                }
+            switch (command.type) {
+                case InboundCommand.TYPE_HANDSHAKE:
+                    mPaused = true;
+                    break;
 
-                Log.d(TAG, "Exiting thread");
+                case InboundCommand.TYPE_REKEY:
+                    if (!crypto.rekeyRx(command.epoch)) {
+                        Log.e(TAG, "Unexpected rekey epoch (" + command.epoch + ")");
+                        return;
+                    }
+                    break;
             }
+
+            mControlHandler.post(() -> onCommand(command));
+        }
+    }
+
+    private class TransportListener implements ConnectionTransport.Listener {
+        @Override
+        public void onConnect() {
+            mControlHandler.post(ConnectionService.this::onSocketConnect);
+        }
+
+        @Override
+        public void onConnectFail(Exception e) {
+            mControlHandler.post(() -> onSocketConnectFail(e));
+        }
+
+        @Override
+        public void onDisconnect(Exception e) {
+            mControlHandler.post(() -> onSocketDisconnect(e));
+        }
+
+        @Override
+        public void onMessage(String message) {
+            mDecoder.post(message);
+        }
+
+        @Override
+        public void onMessage(byte[] message) {
+            mDecoder.post(message);
         }
     }
 }
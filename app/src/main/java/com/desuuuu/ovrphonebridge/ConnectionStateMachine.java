@@ -0,0 +1,147 @@
+package com.desuuuu.ovrphonebridge;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+
+// Must only be used from the scheduler's thread. Timers belong to the state
+// they were scheduled in and are cancelled on every transition.
+class ConnectionStateMachine {
+    enum State {
+        DISCONNECTED,
+        CONNECTING,
+        HANDSHAKING,
+        AWAITING_TRUST,
+        CONNECTED,
+        BACKING_OFF
+    }
+
+    enum Event {
+        CONNECT(State.CONNECTING, EnumSet.of(State.DISCONNECTED, State.BACKING_OFF)),
+        SOCKET_CONNECTED(State.HANDSHAKING, EnumSet.of(State.CONNECTING)),
+        TRUST_PROMPT(State.AWAITING_TRUST, EnumSet.of(State.HANDSHAKING)),
+        HANDSHAKE_SENT(State.HANDSHAKING, EnumSet.of(State.HANDSHAKING, State.AWAITING_TRUST)),
+        HANDSHAKE_DONE(State.CONNECTED, EnumSet.of(State.HANDSHAKING)),
+        BACK_OFF(State.BACKING_OFF, EnumSet.of(State.DISCONNECTED, State.CONNECTING, State.BACKING_OFF)),
+        DISCONNECT(State.DISCONNECTED, EnumSet.allOf(State.class));
+
+        final State target;
+
+        private final EnumSet<State> mSources;
+
+        Event(State target, EnumSet<State> sources) {
+            this.target = target;
+
+            mSources = sources;
+        }
+
+        boolean isValidIn(State state) {
+            return mSources.contains(state);
+        }
+    }
+
+    private final Scheduler mScheduler;
+    private final Listener mListener;
+    private final ArrayList<StateTimer> mTimers = new ArrayList<>();
+
+    private State mState = State.DISCONNECTED;
+    private long mStateSince;
+
+    private long mAttemptStart = -1;
+    private long mLastConnectDuration = -1;
+    private long mConnectCount;
+
+    ConnectionStateMachine(Scheduler scheduler, Listener listener) {
+        mScheduler = scheduler;
+        mListener = listener;
+        mStateSince = scheduler.now();
+    }
+
+    boolean handle(Event event) {
+        if (!event.isValidIn(mState)) {
+            mListener.onRejected(event, mState);
+            return false;
+        }
+
+        State previous = mState;
+        State state = event.target;
+        long now = mScheduler.now();
+
+        cancelTimers();
+
+        if (previous == State.CONNECTED) {
+            mAttemptStart = now;
+        } else if (event == Event.CONNECT && (previous == State.DISCONNECTED || mAttemptStart < 0)) {
+            mAttemptStart = now;
+        }
+
+        if (state == State.CONNECTED) {
+            mLastConnectDuration = now - mAttemptStart;
+            mAttemptStart = -1;
+            mConnectCount++;
+        }
+
+        long timeInState = now - mStateSince;
+
+        mState = state;
+        mStateSince = now;
+
+        if (state != previous) {
+            mListener.onTransition(previous, state, timeInState);
+        }
+
+        return true;
+    }
+
+    void schedule(Runnable task, long delay) {
+        StateTimer timer = new StateTimer(task);
+
+        mTimers.add(timer);
+
+        timer.mHandle = mScheduler.schedule(timer, delay);
+    }
+
+    boolean is(State state) {
+        return (mState == state);
+    }
+
+    State getState() {
+        return mState;
+    }
+
+    long getLastConnectDuration() {
+        return mLastConnectDuration;
+    }
+
+    long getConnectCount() {
+        return mConnectCount;
+    }
+
+    private void cancelTimers() {
+        for (StateTimer timer : mTimers) {
+            timer.mHandle.cancel();
+        }
+
+        mTimers.clear();
+    }
+
+    private class StateTimer implements Runnable {
+        private final Runnable mTask;
+        private Scheduler.Cancellable mHandle;
+
+        StateTimer(Runnable task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            mTimers.remove(this);
+
+            mTask.run();
+        }
+    }
+
+    interface Listener {
+        void onTransition(State from, State to, long timeInState);
+        void onRejected(Event event, State state);
+    }
+}
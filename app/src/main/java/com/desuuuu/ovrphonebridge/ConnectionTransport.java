@@ -0,0 +1,834 @@
+package com.desuuuu.ovrphonebridge;
+
+import android.net.Network;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ConnectionTransport {
+    private static final String TAG = "ConnectionTransport";
+
+    private static final int FRAGMENT = 0x80000000;
+    private static final int FRAGMENT_LAST = 0x40000000;
+    private static final int FRAGMENT_SIZE_MASK = 0x3fffffff;
+
+    private final OutboundQueue mQueue;
+    private final Encoder mEncoder;
+    private final Listener mListener;
+    private final Selector mSelector;
+
+    private final AddressResolver mResolver = new AddressResolver();
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+
+    private volatile boolean mRunning;
+    private volatile long mCoalesceDelay;
+
+    private volatile long mFlushCount;
+    private volatile long mFlushedMessages;
+    private volatile long mFlushedBytes;
+    private volatile long mBatchCount;
+
+    private Connector mConnector;
+    private SocketChannel mChannel;
+    private SelectionKey mKey;
+    private int mChannelGeneration;
+    private long mConnectDeadline;
+    private boolean mConnected;
+
+    private long mFlushDeadline = -1;
+    private boolean mFragmenting;
+    private ByteBuffer mChunkedFrame;
+    private ByteBuffer mChunkedBuffer = ByteBuffer.allocate(Constants.TRANSPORT.WRITE_BUFFER_SIZE);
+    private boolean mChunkedFragments;
+    private final ArrayList<OutboundMessage> mBatch = new ArrayList<>();
+
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(Constants.TRANSPORT.READ_BUFFER_SIZE);
+    private ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(Constants.TRANSPORT.WRITE_BUFFER_SIZE);
+
+    private byte[] mFrame = new byte[Constants.TRANSPORT.READ_BUFFER_SIZE];
+    private int mFrameLength;
+    private int mFrameSize = -1;
+    private boolean mFrameFragment;
+    private boolean mFrameLastFragment;
+    private byte[] mFragments = new byte[Constants.TRANSPORT.READ_BUFFER_SIZE];
+    private int mFragmentsLength;
+    private int mHeader;
+    private int mHeaderLength;
+
+    ConnectionTransport(OutboundQueue queue, Encoder encoder, Listener listener) throws IOException {
+        mQueue = queue;
+        mEncoder = encoder;
+        mListener = listener;
+        mSelector = Selector.open();
+        mRunning = true;
+
+        mWriteBuffer.flip();
+
+        setCoalesceDelay(Constants.TRANSPORT.COALESCE_DELAY_US);
+
+        new Thread(this::run, "ConnectionTransportThread").start();
+    }
+
+    void connect(Network network, String[] serverAddresses, int serverPort) {
+        int generation = mGeneration.incrementAndGet();
+
+        post(() -> open(generation, network, serverAddresses, serverPort));
+    }
+
+    void disconnect() {
+        mGeneration.incrementAndGet();
+
+        post(this::close);
+    }
+
+    boolean send(OutboundMessage message) {
+        return send(message, mGeneration.get());
+    }
+
+    boolean send(OutboundMessage message, int generation) {
+        if (!mRunning) {
+            return false;
+        }
+
+        message.generation = generation;
+
+        if (!mQueue.offer(message)) {
+            return false;
+        }
+
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mSelector.wakeup();
+        }
+
+        return true;
+    }
+
+    int getGeneration() {
+        return mGeneration.get();
+    }
+
+    // Only for binary framing. Applies to bulk frames started afterwards, the
+    // connection resets it on close.
+    void setFragmenting(boolean enabled) {
+        post(() -> mFragmenting = enabled);
+    }
+
+    void setCoalesceDelay(long delayUs) {
+        mCoalesceDelay = TimeUnit.MICROSECONDS.toNanos(Math.max(0, delayUs));
+    }
+
+    long getFlushCount() {
+        return mFlushCount;
+    }
+
+    long getBatchCount() {
+        return mBatchCount;
+    }
+
+    double getMessagesPerFlush() {
+        long flushCount = mFlushCount;
+
+        return (flushCount > 0 ? (double)mFlushedMessages / flushCount : 0);
+    }
+
+    double getBytesPerFlush() {
+        long flushCount = mFlushCount;
+
+        return (flushCount > 0 ? (double)mFlushedBytes / flushCount : 0);
+    }
+
+    void quit() {
+        mGeneration.incrementAndGet();
+
+        mRunning = false;
+
+        mSelector.wakeup();
+    }
+
+    private void post(Runnable task) {
+        if (!mRunning) {
+            return;
+        }
+
+        mTasks.add(task);
+
+        mSelector.wakeup();
+    }
+
+    private void run() {
+        Log.d(TAG, "Thread started");
+
+        try {
+            while (mRunning) {
+                if (mConnector != null) {
+                    long deadline = mConnectDeadline;
+
+                    if (mConnector.getNextAttempt() >= 0) {
+                        deadline = Math.min(deadline, mConnector.getNextAttempt());
+                    }
+
+                    mSelector.select(Math.max(1, deadline - SystemClock.elapsedRealtime()));
+                } else if (mFlushDeadline < 0) {
+                    mSelector.select();
+                } else {
+                    long timeout = TimeUnit.NANOSECONDS.toMillis(
+                            mFlushDeadline - System.nanoTime() + 999999);
+
+                    if (timeout > 0) {
+                        mSelector.select(timeout);
+                    } else {
+                        mSelector.selectNow();
+                    }
+                }
+
+                Runnable task;
+
+                while (mRunning && (task = mTasks.poll()) != null) {
+                    task.run();
+                }
+
+                if (!mRunning) {
+                    break;
+                }
+
+                for (SelectionKey key : mSelector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (mConnector != null && key.attachment() == mConnector) {
+                        mConnector.handle(key);
+                    } else if (key == mKey) {
+                        handle(key);
+                    }
+                }
+
+                mSelector.selectedKeys().clear();
+
+                if (mConnector != null) {
+                    connecting();
+                }
+
+                if (mConnected) {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to send message");
+
+                        onDisconnect(e);
+                    }
+                } else if (mChannel == null && mConnector == null) {
+                    discardStaleFrames();
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Log.e(TAG, "Selector failure: " + e.getMessage());
+        }
+
+        close();
+
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        mTasks.clear();
+
+        mResolver.shutdown();
+
+        Log.d(TAG, "Exiting thread");
+    }
+
+    private void open(int generation, Network network, String[] serverAddresses, int serverPort) {
+        close();
+
+        if (generation != mGeneration.get()) {
+            return;
+        }
+
+        mQueue.discard(generation);
+
+        Log.d(TAG, "Connecting socket");
+
+        mChannelGeneration = generation;
+        mConnectDeadline = SystemClock.elapsedRealtime() + Constants.SOCKET_TIMEOUT;
+
+        Connector connector = new Connector(mSelector, network, serverAddresses.length);
+
+        mConnector = connector;
+
+        for (String host : serverAddresses) {
+            mResolver.resolve(network, host, serverPort, new ResolveCallback(connector));
+        }
+
+        connecting();
+    }
+
+    private void onResolved(Connector connector, List<InetSocketAddress> addresses) {
+        if (mConnector != connector) {
+            return;
+        }
+
+        connector.addAddresses(addresses);
+
+        connecting();
+    }
+
+    private void onResolveFailed(Connector connector, UnknownHostException e) {
+        if (mConnector != connector) {
+            return;
+        }
+
+        connector.onResolveFailed(e);
+
+        connecting();
+    }
+
+    private void connecting() {
+        mConnector.tick();
+
+        SelectionKey key = mConnector.getKey();
+
+        if (key != null) {
+            mConnector = null;
+
+            mKey = key;
+            mChannel = (SocketChannel)key.channel();
+
+            onConnect();
+            return;
+        }
+
+        if (mConnector.hasFailed()) {
+            IOException e = mConnector.getError();
+
+            onConnectFail(e != null ? e : new IOException("Connection failed"));
+        } else if (SystemClock.elapsedRealtime() >= mConnectDeadline) {
+            onConnectFail(new SocketTimeoutException("Connection timed out"));
+        }
+    }
+
+    private void close() {
+        if (mConnector != null) {
+            mConnector.close();
+            mConnector = null;
+        }
+
+        if (mChannel == null) {
+            return;
+        }
+
+        Log.d(TAG, "Closing socket");
+
+        if (mKey != null) {
+            mKey.cancel();
+
+            mKey = null;
+        }
+
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        mChannel = null;
+        mConnected = false;
+
+        discardStaleFrames();
+
+        mFlushDeadline = -1;
+        mFragmenting = false;
+        mChunkedFrame = null;
+        mWriteBuffer.clear().flip();
+        mReadBuffer.clear();
+        mFrameLength = 0;
+        mFrameSize = -1;
+        mHeaderLength = 0;
+        mFragmentsLength = 0;
+    }
+
+    private void handle(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+
+            if (mKey != null && mKey.isValid() && mKey.isWritable()) {
+                write();
+            }
+        } catch (IOException e) {
+            onDisconnect(e);
+        }
+    }
+
+    private void discardStaleFrames() {
+        mQueue.discard(mGeneration.get());
+
+        if (mQueue.isEmpty()) {
+            mFlushScheduled.set(false);
+        }
+    }
+
+    private boolean hasPendingFrames() {
+        return (mChunkedFrame != null || !mQueue.isEmpty(mChannelGeneration));
+    }
+
+    private boolean hasUrgentFrames() {
+        return (!mQueue.isEmpty(Constants.PRIORITY.CONTROL, mChannelGeneration)
+                || !mQueue.isEmpty(Constants.PRIORITY.INTERACTIVE, mChannelGeneration));
+    }
+
+    private void flush() throws IOException {
+        while (!mWriteBuffer.hasRemaining()) {
+            if (!hasPendingFrames()) {
+                mFlushDeadline = -1;
+                return;
+            }
+
+            long now = System.nanoTime();
+
+            if (mFlushDeadline < 0) {
+                mFlushDeadline = now + mCoalesceDelay;
+            }
+
+            if (now < mFlushDeadline && mChunkedFrame == null && !hasUrgentFrames()) {
+                return;
+            }
+
+            mFlushScheduled.set(false);
+
+            int messages = drain();
+
+            int bytes = mWriteBuffer.remaining();
+
+            if (bytes < 1) {
+                continue;
+            }
+
+            mFlushCount++;
+            mFlushedMessages += messages;
+            mFlushedBytes += bytes;
+
+            Log.d(TAG, "Flushing " + messages + " message(s), " + bytes + " bytes");
+
+            mChannel.write(mWriteBuffer);
+
+            if (mChunkedFrame != null) {
+                // Go back to the selector between bulk chunks so that reads
+                // and tasks are serviced while a large frame goes out.
+                mFlushDeadline = now;
+                break;
+            }
+        }
+
+        if (mWriteBuffer.hasRemaining()) {
+            mFlushDeadline = -1;
+
+            mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Control, interactive and real-time frames always go ahead of queued
+    // bulk frames. Bulk data is copied at most BULK_CHUNK_SIZE bytes at a
+    // time. When fragmenting, a large bulk frame goes out as fragments and
+    // higher priority frames are sent between them. Otherwise a bulk frame
+    // that has started must finish first. Frames from a sequenced encoder
+    // are never fragmented, since the frames sent between the fragments
+    // would reach the peer ahead of the frame sealed before them.
+    private int drain() {
+        mWriteBuffer.clear();
+
+        int messages = 0;
+
+        if (mChunkedFrame == null || mChunkedFragments) {
+            for (int priority = Constants.PRIORITY.CONTROL; priority < Constants.PRIORITY.BULK; priority++) {
+                messages += drain(priority);
+
+                if (!mQueue.isEmpty(priority, mChannelGeneration)) {
+                    mWriteBuffer.flip();
+
+                    return messages;
+                }
+            }
+        }
+
+        int budget = Constants.TRANSPORT.BULK_CHUNK_SIZE;
+
+        while (budget > 0 && mWriteBuffer.hasRemaining()) {
+            if (mChunkedFrame == null) {
+                OutboundMessage message = mQueue.poll(Constants.PRIORITY.BULK, mChannelGeneration);
+
+                if (message == null) {
+                    break;
+                }
+
+                int size = mEncoder.encode(message);
+
+                if (size < 0) {
+                    continue;
+                }
+
+                if (mChunkedBuffer.capacity() < size) {
+                    mChunkedBuffer = ByteBuffer.allocate(Math.max(size, mChunkedBuffer.capacity() * 2));
+                }
+
+                mChunkedBuffer.clear();
+
+                mEncoder.writeFrame(mChunkedBuffer);
+
+                mChunkedBuffer.flip();
+
+                mChunkedFrame = mChunkedBuffer;
+
+                mChunkedFragments = (mFragmenting && !mEncoder.isSequenced() && mChunkedFrame.remaining()
+                        > Constants.TRANSPORT.FRAME_HEADER_SIZE + Constants.TRANSPORT.BULK_CHUNK_SIZE);
+
+                if (mChunkedFragments) {
+                    mChunkedFrame.position(mChunkedFrame.position() + Constants.TRANSPORT.FRAME_HEADER_SIZE);
+                }
+            }
+
+            int available = mWriteBuffer.remaining();
+
+            if (mChunkedFragments) {
+                available -= Constants.TRANSPORT.FRAME_HEADER_SIZE;
+
+                if (available < 1) {
+                    break;
+                }
+            }
+
+            int length = Math.min(budget, Math.min(mChunkedFrame.remaining(), available));
+
+            if (mChunkedFragments) {
+                boolean last = (length == mChunkedFrame.remaining());
+
+                mWriteBuffer.putInt(FRAGMENT | (last ? FRAGMENT_LAST : 0) | length);
+            }
+
+            ByteBuffer chunk = mChunkedFrame.duplicate();
+
+            chunk.limit(chunk.position() + length);
+
+            mWriteBuffer.put(chunk);
+
+            mChunkedFrame.position(chunk.position());
+
+            budget -= length;
+
+            if (!mChunkedFrame.hasRemaining()) {
+                mChunkedFrame = null;
+
+                messages++;
+            }
+        }
+
+        mWriteBuffer.flip();
+
+        return messages;
+    }
+
+    // Messages of the same priority that are drained together are sealed
+    // as a single batch envelope when the encoder supports it.
+    private int drain(int priority) {
+        int messages = 0;
+
+        while (mWriteBuffer.position() < Constants.TRANSPORT.WRITE_BUFFER_SIZE) {
+            int batchSize = 0;
+
+            mBatch.clear();
+
+            while (mBatch.size() < Constants.TRANSPORT.MAX_BATCH_MESSAGES
+                    && batchSize < Constants.TRANSPORT.MAX_BATCH_SIZE) {
+                OutboundMessage message = mQueue.poll(priority, mChannelGeneration);
+
+                if (message == null) {
+                    break;
+                }
+
+                mBatch.add(message);
+
+                batchSize += message.payload.length;
+            }
+
+            if (mBatch.isEmpty()) {
+                break;
+            }
+
+            if (mBatch.size() > 1) {
+                int size = mEncoder.encode(mBatch);
+
+                if (size >= 0) {
+                    writeFrame(size);
+
+                    mBatchCount++;
+
+                    messages += mBatch.size();
+                    continue;
+                }
+            }
+
+            for (OutboundMessage message : mBatch) {
+                int size = mEncoder.encode(message);
+
+                if (size < 0) {
+                    continue;
+                }
+
+                writeFrame(size);
+
+                messages++;
+            }
+        }
+
+        mBatch.clear();
+
+        return messages;
+    }
+
+    private void writeFrame(int size) {
+        if (size > mWriteBuffer.remaining()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(
+                    mWriteBuffer.position() + size,
+                    mWriteBuffer.capacity() * 2));
+
+            mWriteBuffer.flip();
+
+            buffer.put(mWriteBuffer);
+
+            mWriteBuffer = buffer;
+        }
+
+        mEncoder.writeFrame(mWriteBuffer);
+    }
+
+    private void write() throws IOException {
+        mChannel.write(mWriteBuffer);
+
+        if (!mWriteBuffer.hasRemaining()) {
+            mKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void read() throws IOException {
+        int read;
+
+        while ((read = mChannel.read(mReadBuffer)) > 0) {
+            mReadBuffer.flip();
+
+            while (mReadBuffer.hasRemaining()) {
+                if (mFrameSize >= 0) {
+                    readFrame();
+                } else if (mHeaderLength > 0
+                        || (mFrameLength == 0 && isFrameStart(mReadBuffer.get(mReadBuffer.position())))) {
+                    readHeader();
+                } else {
+                    readLine();
+                }
+            }
+
+            mReadBuffer.clear();
+
+            if (mChannel == null) {
+                return;
+            }
+        }
+
+        if (read < 0) {
+            onDisconnect(null);
+        }
+    }
+
+    // Binary frames start with a 4-byte big-endian length. Since frames are
+    // capped well below 16 MiB, the first header byte is always zero, or has
+    // its top bit set for fragments. Neither ever starts a text line.
+    private static boolean isFrameStart(byte b) {
+        return (b == 0 || (b & 0x80) != 0);
+    }
+
+    // A fragment header has FRAGMENT set, and FRAGMENT_LAST on the fragment
+    // that completes the frame. Whole frames may arrive between fragments.
+    private void readHeader() throws IOException {
+        mHeader = (mHeader << 8) | (mReadBuffer.get() & 0xff);
+
+        if (++mHeaderLength < Constants.TRANSPORT.FRAME_HEADER_SIZE) {
+            return;
+        }
+
+        mHeaderLength = 0;
+
+        mFrameFragment = ((mHeader & FRAGMENT) != 0);
+        mFrameLastFragment = (mFrameFragment && (mHeader & FRAGMENT_LAST) != 0);
+
+        int size = (mFrameFragment ? mHeader & FRAGMENT_SIZE_MASK : mHeader);
+
+        if (size < 1 || size > Constants.TRANSPORT.MAX_MESSAGE_SIZE
+                || (mFrameFragment && mFragmentsLength + size > Constants.TRANSPORT.MAX_MESSAGE_SIZE)) {
+            throw new IOException("Invalid frame size");
+        }
+
+        if (mFrame.length < size) {
+            mFrame = new byte[size];
+        }
+
+        mFrameSize = size;
+        mFrameLength = 0;
+    }
+
+    private void readFrame() {
+        int length = Math.min(mReadBuffer.remaining(), mFrameSize - mFrameLength);
+
+        mReadBuffer.get(mFrame, mFrameLength, length);
+
+        mFrameLength += length;
+
+        if (mFrameLength < mFrameSize) {
+            return;
+        }
+
+        int size = mFrameSize;
+
+        mFrameLength = 0;
+        mFrameSize = -1;
+
+        byte[] message;
+
+        if (mFrameFragment) {
+            if (mFragments.length < mFragmentsLength + size) {
+                mFragments = Arrays.copyOf(mFragments, Math.max(mFragmentsLength + size, mFragments.length * 2));
+            }
+
+            System.arraycopy(mFrame, 0, mFragments, mFragmentsLength, size);
+
+            mFragmentsLength += size;
+
+            if (!mFrameLastFragment) {
+                return;
+            }
+
+            message = Arrays.copyOf(mFragments, mFragmentsLength);
+
+            mFragmentsLength = 0;
+        } else {
+            message = Arrays.copyOf(mFrame, size);
+        }
+
+        if (isCurrent()) {
+            mListener.onMessage(message);
+        }
+    }
+
+    private void readLine() throws IOException {
+        byte b = mReadBuffer.get();
+
+        if (b == '\n') {
+            String message = new String(mFrame, 0, mFrameLength, StandardCharsets.UTF_8).trim();
+
+            mFrameLength = 0;
+
+            if (message.length() > 0 && isCurrent()) {
+                mListener.onMessage(message);
+            }
+            return;
+        }
+
+        if (mFrameLength == mFrame.length) {
+            if (mFrame.length >= Constants.TRANSPORT.MAX_MESSAGE_SIZE) {
+                throw new IOException("Message too large");
+            }
+
+            mFrame = Arrays.copyOf(mFrame, mFrame.length * 2);
+        }
+
+        mFrame[mFrameLength++] = b;
+    }
+
+    private void onConnect() {
+        mConnected = true;
+
+        if (isCurrent()) {
+            mListener.onConnect();
+        }
+    }
+
+    private void onConnectFail(Exception e) {
+        close();
+
+        if (isCurrent()) {
+            mListener.onConnectFail(e);
+        }
+    }
+
+    private void onDisconnect(Exception e) {
+        close();
+
+        if (isCurrent()) {
+            mListener.onDisconnect(e);
+        }
+    }
+
+    private boolean isCurrent() {
+        return (mRunning && mChannelGeneration == mGeneration.get());
+    }
+
+    // Lookups finish on resolver threads, results are handed back to the
+    // selector thread.
+    private class ResolveCallback implements AddressResolver.Callback {
+        private final Connector mConnector;
+
+        ResolveCallback(Connector connector) {
+            mConnector = connector;
+        }
+
+        @Override
+        public void onResolved(List<InetSocketAddress> addresses) {
+            post(() -> ConnectionTransport.this.onResolved(mConnector, addresses));
+        }
+
+        @Override
+        public void onFailed(UnknownHostException e) {
+            post(() -> onResolveFailed(mConnector, e));
+        }
+    }
+
+    // encode() returns the size of the frame, or -1 when there is nothing to
+    // send. The frame is then written with writeFrame() before the next one
+    // is encoded.
+    interface Encoder {
+        int encode(OutboundMessage message);
+        int encode(List<OutboundMessage> messages);
+        void writeFrame(ByteBuffer output);
+
+        // Whether the peer must receive frames in the order they were encoded.
+        boolean isSequenced();
+    }
+
+    interface Listener {
+        void onConnect();
+        void onConnectFail(Exception e);
+        void onDisconnect(Exception e);
+        void onMessage(String message);
+        void onMessage(byte[] message);
+    }
+}
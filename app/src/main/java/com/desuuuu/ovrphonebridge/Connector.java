@@ -0,0 +1,196 @@
+package com.desuuuu.ovrphonebridge;
+
+import android.net.Network;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+class Connector {
+    private static final String TAG = Connector.class.getSimpleName();
+
+    private final Selector mSelector;
+    private final Network mNetwork;
+    private final ArrayDeque<InetSocketAddress> mAddresses = new ArrayDeque<>();
+    private final HashSet<InetSocketAddress> mSeenAddresses = new HashSet<>();
+    private final ArrayList<SelectionKey> mAttempts = new ArrayList<>();
+
+    private SelectionKey mKey;
+    private IOException mError;
+    private int mPendingHosts;
+    private long mLastAttempt;
+    private long mNextAttempt = -1;
+
+    Connector(Selector selector, Network network, int hosts) {
+        mSelector = selector;
+        mNetwork = network;
+        mPendingHosts = hosts;
+    }
+
+    // Addresses join the race as soon as their host is resolved. A running
+    // attempt still gets its head start before the next one begins.
+    void addAddresses(List<InetSocketAddress> addresses) {
+        mPendingHosts--;
+
+        if (mKey != null) {
+            return;
+        }
+
+        for (InetSocketAddress address : addresses) {
+            if (mSeenAddresses.add(address)) {
+                mAddresses.add(address);
+            }
+        }
+
+        if (mAttempts.isEmpty()) {
+            attempt();
+        } else if (mNextAttempt < 0 && !mAddresses.isEmpty()) {
+            mNextAttempt = mLastAttempt + Constants.TRANSPORT.CONNECTION_ATTEMPT_DELAY;
+        }
+    }
+
+    void onResolveFailed(IOException e) {
+        mPendingHosts--;
+
+        mError = e;
+    }
+
+    void handle(SelectionKey key) {
+        if (!key.isConnectable()) {
+            return;
+        }
+
+        SocketChannel channel = (SocketChannel)key.channel();
+
+        try {
+            if (channel.finishConnect()) {
+                onConnect(key);
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Connection attempt failed: " + e.getMessage());
+
+            mError = e;
+
+            mAttempts.remove(key);
+
+            close(key);
+
+            attempt();
+        }
+    }
+
+    void tick() {
+        if (mKey == null && mNextAttempt >= 0 && SystemClock.elapsedRealtime() >= mNextAttempt) {
+            attempt();
+        }
+    }
+
+    long getNextAttempt() {
+        return mNextAttempt;
+    }
+
+    SelectionKey getKey() {
+        return mKey;
+    }
+
+    boolean hasFailed() {
+        return (mKey == null && mPendingHosts <= 0 && mAttempts.isEmpty() && mAddresses.isEmpty());
+    }
+
+    IOException getError() {
+        return mError;
+    }
+
+    void close() {
+        for (SelectionKey key : mAttempts) {
+            close(key);
+        }
+
+        mAttempts.clear();
+        mAddresses.clear();
+
+        mNextAttempt = -1;
+    }
+
+    private void attempt() {
+        mNextAttempt = -1;
+
+        while (mKey == null && !mAddresses.isEmpty()) {
+            InetSocketAddress address = mAddresses.poll();
+
+            SocketChannel channel = null;
+
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setKeepAlive(true);
+                channel.socket().setTcpNoDelay(true);
+
+                if (mNetwork != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    mNetwork.bindSocket(channel.socket());
+                }
+
+                Log.d(TAG, "Connecting to " + address);
+
+                mLastAttempt = SystemClock.elapsedRealtime();
+
+                SelectionKey key = channel.register(mSelector, SelectionKey.OP_CONNECT, this);
+
+                mAttempts.add(key);
+
+                if (channel.connect(address)) {
+                    onConnect(key);
+                    return;
+                }
+
+                if (!mAddresses.isEmpty()) {
+                    mNextAttempt = mLastAttempt + Constants.TRANSPORT.CONNECTION_ATTEMPT_DELAY;
+                }
+                return;
+            } catch (IOException e) {
+                Log.d(TAG, "Connection attempt failed: " + e.getMessage());
+
+                mError = e;
+
+                if (channel != null) {
+                    mAttempts.remove(channel.keyFor(mSelector));
+
+                    close(channel);
+                }
+            }
+        }
+    }
+
+    private void onConnect(SelectionKey key) {
+        mAttempts.remove(key);
+
+        key.interestOps(SelectionKey.OP_READ);
+        key.attach(null);
+
+        mKey = key;
+
+        close();
+    }
+
+    private static void close(SelectionKey key) {
+        close(key.channel());
+    }
+
+    private static void close(SelectableChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -25,9 +25,6 @@ public class Constants {
         String DISMISS_HANDSHAKE_PROMPT = "com.desuuuu.ovrphonebridge.intent.dismiss_handshake_prompt";
 
         String NOTIFICATION_LIST_REQUEST = "com.desuuuu.ovrphonebridge.intent.notification_list_request";
-        String NOTIFICATION_LIST = "com.desuuuu.ovrphonebridge.intent.notification_list";
-        String NOTIFICATION_RECEIVED = "com.desuuuu.ovrphonebridge.intent.notification_received";
-        String NOTIFICATION_REMOVED = "com.desuuuu.ovrphonebridge.intent.notification_removed";
         String NOTIFICATION_DISMISS = "com.desuuuu.ovrphonebridge.intent.notification_dismiss";
 
         String SMS_SENT = "com.desuuuu.ovrphonebridge.intent.sms_sent";
@@ -41,6 +38,7 @@ public class Constants {
         int SERVICE_CHECK_INTERVAL = 900000;
         int MAX_TITLE_LENGTH = 40;
         int MAX_TEXT_LENGTH = 250;
+        int EVENT_RING_SIZE = 256;
     }
 
     public interface SERVICE {
@@ -54,11 +52,64 @@ public class Constants {
         String TAG = "OVRPhoneBridge::ConnectionWakeLock";
     }
 
-    public interface MESSAGE {
-        int CONNECT = 0;
-        int DISCONNECT = 1;
-        int MESSAGE = 2;
-        int READ_THREAD_EXIT = 3;
+    public interface TRANSPORT {
+        int READ_BUFFER_SIZE = 8192;
+        int WRITE_BUFFER_SIZE = 65536;
+        long COALESCE_DELAY_US = 2000;
+        int BULK_CHUNK_SIZE = 16384;
+        int MAX_MESSAGE_SIZE = 4194304;
+        int FRAME_HEADER_SIZE = 4;
+        long CONNECTION_ATTEMPT_DELAY = 250;
+        long DNS_CACHE_TTL = 60000;
+        long DNS_NEGATIVE_CACHE_TTL = 10000;
+        int MAX_BATCH_MESSAGES = 32;
+        int MAX_BATCH_SIZE = 65536;
+        int MAX_QUEUED_MESSAGES = 512;
+        int MAX_QUEUED_SIZE = 4194304;
+    }
+
+    public interface PRIORITY {
+        int CONTROL = 0;
+        int INTERACTIVE = 1;
+        int REALTIME = 2;
+        int BULK = 3;
+    }
+
+    public interface QUERY {
+        int THREADS = 2;
+        int MAX_PENDING = 8;
+        long KEEP_ALIVE = 30000;
+        long FLIGHT_TIMEOUT = 30000;
+    }
+
+    public interface RECONNECT {
+        long BASE_DELAY = 2000;
+        long MAX_DELAY = 300000;
+        long STABLE_PERIOD = 60000;
+    }
+
+    public interface ENCODING {
+        String JSON = "json";
+        String CBOR = "cbor";
+    }
+
+    public interface CRYPTO {
+        int BUFFER_SIZE = 8192;
+        long STREAM_REKEY_INTERVAL = 65536;
+        long REKEY_MESSAGES = 100000;
+        long REKEY_INTERVAL = 3600000;
+        long REKEY_OVERLAP = 30000;
+        long REKEY_CHECK_INTERVAL = 60000;
+        int COMPRESSION_THRESHOLD = 128;
+    }
+
+    public interface RESUMPTION {
+        long MAX_LIFETIME = 600000;
+        int NONCE_SIZE = 32;
+    }
+
+    public interface HEARTBEAT {
+        int MAX_MISSED = 3;
     }
 
     public interface PERMISSION {
@@ -68,6 +119,7 @@ public class Constants {
     public interface DEFAULT {
         String PORT = "8888";
         boolean RETRY_FOREVER = false;
+        String HEARTBEAT_INTERVAL = "15";
         boolean FEATURE_NOTIFICATIONS = false;
         boolean FEATURE_SMS = false;
         String DEVICE_NAME = "Android Device";
@@ -1,22 +1,79 @@
 package com.desuuuu.ovrphonebridge;
 
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 import android.util.Base64;
 
 import org.libsodium.jni.NaCl;
 import org.libsodium.jni.Sodium;
 import org.libsodium.jni.encoders.Encoder;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 class Crypto {
+    static final String CIPHER_XCHACHA20POLY1305 = "xchacha20poly1305";
+    static final String CIPHER_AES256GCM = "aes256gcm";
+
+    private static final int TIMESTAMP_SIZE = 8;
+    private static final int COUNTER_SIZE = 8;
+    private static final int STREAM_HEADER_SIZE = 16;
+    private static final byte STREAM_TAG_MESSAGE = 0;
+    private static final byte STREAM_TAG_REKEY = 2;
+
+    private static Boolean sAesHardware;
+
+    static {
+        NaCl.sodium();
+    }
+
     private byte[] mSharedPublicKey;
     private byte[] mSharedSecretKey;
 
     private String mServerIdentifier;
 
+    private volatile Aead mAead = new XChaChaAead();
+    private String mNegotiatedCipherSuite;
+    private volatile Compressor mCompressor;
+    private byte[] mTxKey;
+    private byte[] mRxKey;
+    private byte[] mPreviousRxKey;
+    private long mPreviousRxKeyExpiry;
+
+    private volatile int mTxEpoch;
+    private volatile long mTxEpochStart = SystemClock.elapsedRealtime();
+    private volatile long mTxCount;
+    private volatile boolean mRekeyPending;
+    private int mRxEpoch;
+
+    private final ByteBuffer mEncryptAd = ByteBuffer.allocate(TIMESTAMP_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private byte[] mEncryptNonce = new byte[mAead.getNonceSize()];
+    private byte[] mEncryptBuffer = new byte[Constants.CRYPTO.BUFFER_SIZE];
+    private int mSealedLength;
+    private boolean mSealedStream;
+
+    private final ByteBuffer mDecryptAd = ByteBuffer.allocate(TIMESTAMP_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private byte[] mDecryptNonce = new byte[mAead.getNonceSize()];
+    private byte[] mDecryptBuffer = new byte[Constants.CRYPTO.BUFFER_SIZE];
+    private byte[] mDecryptOutput = new byte[Constants.CRYPTO.BUFFER_SIZE];
+
+    private volatile boolean mStreaming;
+    private byte[] mStreamTxContext;
+    private byte[] mStreamRxContext;
+    private byte[] mStreamTxKey;
+    private byte[] mStreamRxKey;
+    private byte[] mStreamTxNonce;
+    private byte[] mStreamRxNonce;
+    private final byte[] mStreamTxTag = new byte[1];
+    private final byte[] mStreamRxTag = new byte[1];
+    private long mStreamTxCounter;
+    private long mStreamRxCounter;
+
     Crypto(String publicKeyHex, String secretKeyHex, byte[] serverPublicKey) throws Exception {
         NaCl.sodium();
 
@@ -28,82 +85,160 @@ class Crypto {
         }
 
         mServerIdentifier = getIdentifier(serverPublicKey);
+
+        mTxKey = mSharedPublicKey;
+        mRxKey = mSharedSecretKey;
     }
 
-    String encrypt(String plainText) throws Exception {
-        NaCl.sodium();
+    Crypto(byte[] sharedPublicKey, byte[] sharedSecretKey, String serverIdentifier) {
+        mSharedPublicKey = sharedPublicKey;
+        mSharedSecretKey = sharedSecretKey;
+        mServerIdentifier = serverIdentifier;
 
-        byte[] input = plainText.getBytes(StandardCharsets.UTF_8);
+        mTxKey = mSharedPublicKey;
+        mRxKey = mSharedSecretKey;
+    }
 
-        ByteBuffer ad = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
-        ad.putLong(getCurrentTime());
+    String encrypt(String plainText) throws Exception {
+        byte[] data = plainText.getBytes(StandardCharsets.UTF_8);
 
-        byte[] nonce = new byte[Sodium.crypto_aead_xchacha20poly1305_ietf_npubbytes()];
-        Sodium.randombytes_buf(nonce, nonce.length);
+        return encryptToString(data, data.length);
+    }
 
-        byte[] cipher = new byte[input.length + Sodium.crypto_aead_xchacha20poly1305_ietf_abytes()];
-        int[] cipherLen = new int[1];
+    String decrypt(String encryptedText) throws Exception {
+        return new String(decryptFromString(encryptedText), StandardCharsets.UTF_8);
+    }
 
-        if (Sodium.crypto_aead_xchacha20poly1305_ietf_encrypt(
-                cipher,
-                cipherLen,
-                input,
-                input.length,
-                ad.array(),
-                ad.capacity(),
-                new byte[0],
-                nonce,
-                mSharedPublicKey) != 0) {
-            throw new Exception("Encryption failed");
+    byte[] decryptFromString(String encryptedText) throws Exception {
+        byte[] data;
+
+        try {
+            data = Base64.decode(encryptedText, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            throw new Exception("Invalid input");
         }
 
-        ByteBuffer result = ByteBuffer.allocate(ad.capacity() + nonce.length + cipherLen[0]);
+        return decrypt(data);
+    }
 
-        result.put(ad.array());
-        result.put(nonce);
-        result.put(cipher, 0, cipherLen[0]);
+    String encryptToString(byte[] input, int length) throws Exception {
+        return Base64.encodeToString(encrypt(input, length), Base64.DEFAULT | Base64.NO_WRAP);
+    }
 
-        return Base64.encodeToString(result.array(), Base64.DEFAULT | Base64.NO_WRAP);
+    byte[] encrypt(byte[] input) throws Exception {
+        return encrypt(input, input.length);
     }
 
-    String decrypt(String encryptedText) throws Exception {
-        NaCl.sodium();
+    byte[] encrypt(byte[] input, int length) throws Exception {
+        byte[] result = new byte[seal(input, length)];
 
-        ByteBuffer data = ByteBuffer.wrap(Base64.decode(encryptedText, Base64.DEFAULT));
+        writeSealed(ByteBuffer.wrap(result));
 
-        ByteBuffer ad = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+        return result;
+    }
 
-        byte[] nonce = new byte[Sodium.crypto_aead_xchacha20poly1305_ietf_npubbytes()];
+    int seal(byte[] input, int inputLength) throws Exception {
+        return seal(input, inputLength, Integer.MAX_VALUE);
+    }
 
-        if (data.capacity() <= ad.capacity() + nonce.length + Sodium.crypto_aead_xchacha20poly1305_ietf_abytes()) {
-            throw new Exception("Invalid input");
+    // The size limit is checked before anything is encrypted, so a rejected
+    // message never advances the stream counter or the message count.
+    int seal(byte[] input, int inputLength, int maxSize) throws Exception {
+        Aead aead = mAead;
+        Compressor compressor = mCompressor;
+
+        if (compressor != null) {
+            inputLength = compressor.compress(input, inputLength);
+            input = compressor.getCompressed();
         }
 
-        byte[] encrypted = new byte[data.capacity() - ad.capacity() - nonce.length];
+        boolean streaming = mStreaming;
 
-        data.get(ad.array());
-        data.get(nonce);
-        data.get(encrypted);
+        int overhead = (streaming ? 1 : TIMESTAMP_SIZE + mEncryptNonce.length) + aead.getTagSize();
 
-        ByteBuffer decrypted = ByteBuffer.allocate(
-                encrypted.length - Sodium.crypto_aead_xchacha20poly1305_ietf_abytes());
+        if ((long)inputLength + overhead > maxSize) {
+            throw new Exception("Message too large");
+        }
 
-        int[] decryptedLen = new int[1];
+        mSealedStream = streaming;
 
-        if (Sodium.crypto_aead_xchacha20poly1305_ietf_decrypt(
-                decrypted.array(),
-                decryptedLen,
-                new byte[0],
-                encrypted,
-                encrypted.length,
-                ad.array(),
-                ad.capacity(),
-                nonce,
-                mSharedSecretKey) != 0) {
-            throw new Exception("Decryption failed");
+        if (mSealedStream) {
+            mSealedLength = sealStream(aead, input, inputLength);
+
+            return (1 + mSealedLength);
+        }
+
+        mSealedLength = sealBox(aead, input, inputLength);
+
+        return (TIMESTAMP_SIZE + mEncryptNonce.length + mSealedLength);
+    }
+
+    void writeSealed(ByteBuffer output) {
+        if (mSealedStream) {
+            output.put(mStreamTxTag[0]);
+        } else {
+            output.put(mEncryptAd.array());
+            output.put(mEncryptNonce);
+        }
+
+        output.put(mEncryptBuffer, 0, mSealedLength);
+    }
+
+    byte[] decrypt(byte[] input) throws Exception {
+        return decrypt(input, 0, input.length);
+    }
+
+    byte[] decrypt(byte[] input, int offset, int length) throws Exception {
+        Aead aead = mAead;
+
+        if (mStreaming) {
+            return openStream(aead, input, offset, length);
+        }
+
+        int nonceSize = aead.getNonceSize();
+        int tagSize = aead.getTagSize();
+
+        if (length <= TIMESTAMP_SIZE + nonceSize + tagSize) {
+            throw new Exception("Invalid input");
+        }
+
+        int encryptedLength = length - TIMESTAMP_SIZE - nonceSize;
+
+        System.arraycopy(input, offset, mDecryptAd.array(), 0, TIMESTAMP_SIZE);
+        System.arraycopy(input, offset + TIMESTAMP_SIZE, mDecryptNonce, 0, nonceSize);
+
+        mDecryptBuffer = ensureCapacity(mDecryptBuffer, encryptedLength);
+        mDecryptOutput = ensureCapacity(mDecryptOutput, encryptedLength - tagSize);
+
+        System.arraycopy(input, offset + TIMESTAMP_SIZE + nonceSize, mDecryptBuffer, 0, encryptedLength);
+
+        int decryptedLength;
+
+        try {
+            decryptedLength = aead.decrypt(
+                    mDecryptOutput,
+                    mDecryptBuffer,
+                    encryptedLength,
+                    mDecryptAd.array(),
+                    TIMESTAMP_SIZE,
+                    mDecryptNonce,
+                    mRxKey);
+        } catch (Exception e) {
+            if (mPreviousRxKey == null || SystemClock.elapsedRealtime() >= mPreviousRxKeyExpiry) {
+                throw e;
+            }
+
+            decryptedLength = aead.decrypt(
+                    mDecryptOutput,
+                    mDecryptBuffer,
+                    encryptedLength,
+                    mDecryptAd.array(),
+                    TIMESTAMP_SIZE,
+                    mDecryptNonce,
+                    mPreviousRxKey);
         }
 
-        long timestamp = ad.getLong();
+        long timestamp = mDecryptAd.getLong(0);
         long currentTime = getCurrentTime();
 
         if (timestamp > currentTime + Constants.TIMESTAMP_LEEWAY
@@ -111,17 +246,371 @@ class Crypto {
             throw new Exception("Expired message");
         }
 
-        byte[] result = new byte[decryptedLen[0]];
+        return unpack(decryptedLength);
+    }
+
+    String getCipherSuite() {
+        return mAead.getName();
+    }
+
+    void setCipherSuite(String name) throws Exception {
+        Aead aead;
+
+        switch (name) {
+            case CIPHER_XCHACHA20POLY1305:
+                aead = new XChaChaAead();
+                break;
+
+            case CIPHER_AES256GCM:
+                aead = new AesGcmAead();
+                break;
+
+            default:
+                throw new Exception("Unsupported cipher suite");
+        }
+
+        byte[] context = name.getBytes(StandardCharsets.UTF_8);
+
+        mTxKey = hash(mSharedPublicKey, context);
+        mRxKey = hash(mSharedSecretKey, context);
+
+        mEncryptNonce = new byte[aead.getNonceSize()];
+        mDecryptNonce = new byte[aead.getNonceSize()];
+
+        mAead = aead;
+        mNegotiatedCipherSuite = name;
+    }
+
+    String getNegotiatedCipherSuite() {
+        return mNegotiatedCipherSuite;
+    }
+
+    Compressor getCompressor() {
+        return mCompressor;
+    }
+
+    void setCompression(String method) throws Exception {
+        mCompressor = new Compressor(method);
+    }
+
+    boolean shouldRekey() {
+        return (!mRekeyPending
+                && (mTxCount >= Constants.CRYPTO.REKEY_MESSAGES
+                || SystemClock.elapsedRealtime() - mTxEpochStart >= Constants.CRYPTO.REKEY_INTERVAL));
+    }
+
+    int requestRekey() {
+        mRekeyPending = true;
+
+        return mTxEpoch + 1;
+    }
+
+    boolean isRekeyPending() {
+        return mRekeyPending;
+    }
+
+    int getTxEpoch() {
+        return mTxEpoch;
+    }
+
+    void rekeyTx() {
+        mTxKey = hash(mTxKey, "rekey".getBytes(StandardCharsets.UTF_8));
+
+        if (mStreaming) {
+            mStreamTxKey = hash(mTxKey, mStreamTxContext);
+            mStreamTxCounter = 0;
+        }
+
+        mTxCount = 0;
+        mTxEpochStart = SystemClock.elapsedRealtime();
+        mTxEpoch++;
+
+        mRekeyPending = false;
+    }
+
+    boolean rekeyRx(int epoch) {
+        if (epoch != mRxEpoch + 1) {
+            return false;
+        }
+
+        mPreviousRxKey = mRxKey;
+        mPreviousRxKeyExpiry = SystemClock.elapsedRealtime() + Constants.CRYPTO.REKEY_OVERLAP;
+
+        mRxKey = hash(mRxKey, "rekey".getBytes(StandardCharsets.UTF_8));
+
+        if (mStreaming) {
+            mStreamRxKey = hash(mRxKey, mStreamRxContext);
+            mStreamRxCounter = 0;
+        }
+
+        mRxEpoch = epoch;
+
+        return true;
+    }
+
+    boolean isStreaming() {
+        return mStreaming;
+    }
+
+    // The box keys are the same in every session with the same key pairs and
+    // the counters restart at zero, so the stream keys mix in both random
+    // headers. Each direction hashes the sender's header first.
+    void startStream(byte[] txHeader, byte[] rxHeader) throws Exception {
+        Aead aead = mAead;
+
+        int headerSize = aead.getNonceSize() - COUNTER_SIZE;
+
+        if (txHeader.length < headerSize || rxHeader.length < headerSize) {
+            throw new Exception("Invalid stream header");
+        }
+
+        byte[] context = "stream".getBytes(StandardCharsets.UTF_8);
+
+        mStreamTxContext = concat(context, txHeader, rxHeader);
+        mStreamRxContext = concat(context, rxHeader, txHeader);
+
+        mStreamTxKey = hash(mTxKey, mStreamTxContext);
+        mStreamRxKey = hash(mRxKey, mStreamRxContext);
+
+        mStreamTxNonce = new byte[aead.getNonceSize()];
+        mStreamRxNonce = new byte[aead.getNonceSize()];
+
+        System.arraycopy(txHeader, 0, mStreamTxNonce, 0, headerSize);
+        System.arraycopy(rxHeader, 0, mStreamRxNonce, 0, headerSize);
+
+        mStreamTxCounter = 0;
+        mStreamRxCounter = 0;
+
+        mStreaming = true;
+    }
+
+    static byte[] createStreamHeader() {
+        return randomBytes(STREAM_HEADER_SIZE);
+    }
+
+    static String[] getSupportedCipherSuites() {
+        if (hasAesHardware()) {
+            return new String[] { CIPHER_AES256GCM, CIPHER_XCHACHA20POLY1305 };
+        }
+
+        return new String[] { CIPHER_XCHACHA20POLY1305 };
+    }
+
+    static synchronized boolean hasAesHardware() {
+        if (sAesHardware != null) {
+            return sAesHardware;
+        }
+
+        sAesHardware = false;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/cpuinfo"))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("Features") && !line.startsWith("flags")) {
+                    continue;
+                }
+
+                for (String feature : line.substring(line.indexOf(':') + 1).trim().split("\\s+")) {
+                    if (feature.equals("aes")) {
+                        sAesHardware = true;
+
+                        return true;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    private int sealBox(Aead aead, byte[] input, int length) throws Exception {
+        mEncryptAd.putLong(0, getCurrentTime());
 
-        decrypted.get(result);
+        Sodium.randombytes_buf(mEncryptNonce, mEncryptNonce.length);
 
-        return new String(result, StandardCharsets.UTF_8);
+        mEncryptBuffer = ensureCapacity(mEncryptBuffer, length + aead.getTagSize());
+
+        mTxCount++;
+
+        return aead.encrypt(
+                mEncryptBuffer,
+                input,
+                length,
+                mEncryptAd.array(),
+                TIMESTAMP_SIZE,
+                mEncryptNonce,
+                mTxKey);
+    }
+
+    private int sealStream(Aead aead, byte[] input, int length) throws Exception {
+        boolean rekey = (mStreamTxCounter + 1 >= Constants.CRYPTO.STREAM_REKEY_INTERVAL);
+
+        mStreamTxTag[0] = (rekey ? STREAM_TAG_REKEY : STREAM_TAG_MESSAGE);
+
+        putCounter(mStreamTxNonce, mStreamTxCounter);
+
+        mEncryptBuffer = ensureCapacity(mEncryptBuffer, length + aead.getTagSize());
+
+        mTxCount++;
+
+        int encryptedLength = aead.encrypt(
+                mEncryptBuffer,
+                input,
+                length,
+                mStreamTxTag,
+                1,
+                mStreamTxNonce,
+                mStreamTxKey);
+
+        if (rekey) {
+            mStreamTxKey = hash(mStreamTxKey, "rekey".getBytes(StandardCharsets.UTF_8));
+            mStreamTxCounter = 0;
+        } else {
+            mStreamTxCounter++;
+        }
+
+        return encryptedLength;
+    }
+
+    private byte[] openStream(Aead aead, byte[] input, int offset, int length) throws Exception {
+        if (length <= 1 + aead.getTagSize()) {
+            throw new Exception("Invalid input");
+        }
+
+        int encryptedLength = length - 1;
+
+        mStreamRxTag[0] = input[offset];
+
+        putCounter(mStreamRxNonce, mStreamRxCounter);
+
+        mDecryptBuffer = ensureCapacity(mDecryptBuffer, encryptedLength);
+        mDecryptOutput = ensureCapacity(mDecryptOutput, encryptedLength - aead.getTagSize());
+
+        System.arraycopy(input, offset + 1, mDecryptBuffer, 0, encryptedLength);
+
+        int decryptedLength = aead.decrypt(
+                mDecryptOutput,
+                mDecryptBuffer,
+                encryptedLength,
+                mStreamRxTag,
+                1,
+                mStreamRxNonce,
+                mStreamRxKey);
+
+        if (mStreamRxTag[0] == STREAM_TAG_REKEY) {
+            mStreamRxKey = hash(mStreamRxKey, "rekey".getBytes(StandardCharsets.UTF_8));
+            mStreamRxCounter = 0;
+        } else {
+            mStreamRxCounter++;
+        }
+
+        return unpack(decryptedLength);
+    }
+
+    private byte[] unpack(int length) throws Exception {
+        Compressor compressor = mCompressor;
+
+        if (compressor != null) {
+            return compressor.decompress(mDecryptOutput, length);
+        }
+
+        return Arrays.copyOf(mDecryptOutput, length);
+    }
+
+    private static void putCounter(byte[] nonce, long counter) {
+        for (int i = 0; i < COUNTER_SIZE; i++) {
+            nonce[nonce.length - COUNTER_SIZE + i] = (byte)(counter >>> (8 * i));
+        }
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int length) {
+        if (buffer.length >= length) {
+            return buffer;
+        }
+
+        return new byte[Math.max(length, buffer.length * 2)];
     }
 
     String getServerIdentifier() {
         return mServerIdentifier;
     }
 
+    byte[] getResumptionSecret() {
+        byte[] keys = new byte[mSharedPublicKey.length + mSharedSecretKey.length];
+
+        System.arraycopy(mSharedPublicKey, 0, keys, 0, mSharedPublicKey.length);
+        System.arraycopy(mSharedSecretKey, 0, keys, mSharedPublicKey.length, mSharedSecretKey.length);
+
+        return hash(keys, "resumption".getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Restores what the ticket's session negotiated. Stream headers are not
+    // exchanged on resumption, both sides derive them from the fresh keys.
+    static Crypto resume(SessionTicket ticket, byte[] clientNonce, byte[] serverNonce) throws Exception {
+        byte[] sharedPublicKey = hash(ticket.secret, concat(
+                "client".getBytes(StandardCharsets.UTF_8), clientNonce, serverNonce));
+
+        byte[] sharedSecretKey = hash(ticket.secret, concat(
+                "server".getBytes(StandardCharsets.UTF_8), clientNonce, serverNonce));
+
+        Crypto crypto = new Crypto(sharedPublicKey, sharedSecretKey, ticket.serverIdentifier);
+
+        if (ticket.cipherSuite != null) {
+            crypto.setCipherSuite(ticket.cipherSuite);
+        }
+
+        if (ticket.compression != null) {
+            crypto.setCompression(ticket.compression);
+        }
+
+        if (ticket.streaming) {
+            byte[] context = "stream_header".getBytes(StandardCharsets.UTF_8);
+
+            crypto.startStream(hash(sharedPublicKey, context), hash(sharedSecretKey, context));
+        }
+
+        return crypto;
+    }
+
+    static byte[] hash(byte[] key, byte[] input) {
+        NaCl.sodium();
+
+        byte[] output = new byte[Sodium.crypto_generichash_bytes()];
+
+        Sodium.crypto_generichash(output, output.length, input, input.length, key, key.length);
+
+        return output;
+    }
+
+    static byte[] concat(byte[]... inputs) {
+        int length = 0;
+
+        for (byte[] input : inputs) {
+            length += input.length;
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(length);
+
+        for (byte[] input : inputs) {
+            result.put(input);
+        }
+
+        return result.array();
+    }
+
+    static byte[] randomBytes(int length) {
+        NaCl.sodium();
+
+        byte[] result = new byte[length];
+
+        Sodium.randombytes_buf(result, result.length);
+
+        return result;
+    }
+
     static byte[] getServerPublicKey(String publicKeyHex, String secretKeyHex, String data) throws Exception {
         NaCl.sodium();
 
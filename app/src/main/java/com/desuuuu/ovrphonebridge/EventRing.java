@@ -0,0 +1,172 @@
+package com.desuuuu.ovrphonebridge;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Single producer, single consumer. Slots are allocated once and reused, the
+// producer fills a claimed slot in place and the consumer drains every
+// published slot in one pass.
+class EventRing<E> {
+    private static final String TAG = "EventRing";
+
+    private final Object[] mSlots;
+    private final long[] mPublishTimes;
+    private final int mMask;
+    private final Handler<E> mHandler;
+    private final Thread mThread;
+
+    private final AtomicLong mPublished = new AtomicLong(-1);
+    private final AtomicLong mConsumed = new AtomicLong(-1);
+    private long mClaimed = -1;
+
+    private volatile boolean mRunning;
+    private volatile boolean mWaiting;
+
+    private volatile long mDroppedCount;
+    private volatile long mBatchCount;
+    private volatile long mMaxBatchSize;
+    private volatile long mTotalLatency;
+    private volatile long mMaxLatency;
+
+    EventRing(String name, int size, Factory<E> factory, Handler<E> handler) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Size must be a power of two");
+        }
+
+        mSlots = new Object[size];
+        mPublishTimes = new long[size];
+        mMask = size - 1;
+        mHandler = handler;
+
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = factory.create();
+        }
+
+        mRunning = true;
+
+        mThread = new Thread(this::run, name);
+        mThread.start();
+    }
+
+    @SuppressWarnings("unchecked")
+    E claim() {
+        long sequence = mClaimed + 1;
+
+        if (sequence - mSlots.length > mConsumed.get()) {
+            mDroppedCount++;
+            return null;
+        }
+
+        mClaimed = sequence;
+
+        return (E)mSlots[(int)(sequence & mMask)];
+    }
+
+    void publish() {
+        mPublishTimes[(int)(mClaimed & mMask)] = System.nanoTime();
+
+        mPublished.set(mClaimed);
+
+        if (mWaiting) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    void quit() {
+        mRunning = false;
+
+        LockSupport.unpark(mThread);
+    }
+
+    long getPublishedCount() {
+        return mPublished.get() + 1;
+    }
+
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    long getBatchCount() {
+        return mBatchCount;
+    }
+
+    long getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    double getAverageLatencyUs() {
+        long consumed = mConsumed.get() + 1;
+
+        return (consumed > 0 ? mTotalLatency / 1000.0 / consumed : 0);
+    }
+
+    double getMaxLatencyUs() {
+        return mMaxLatency / 1000.0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void run() {
+        Log.d(TAG, "Thread started (" + mThread.getName() + ")");
+
+        long next = 0;
+
+        while (mRunning) {
+            long available = mPublished.get();
+
+            if (available < next) {
+                mWaiting = true;
+
+                if (mRunning && mPublished.get() < next) {
+                    LockSupport.park(this);
+                }
+
+                mWaiting = false;
+                continue;
+            }
+
+            long now = System.nanoTime();
+
+            for (long sequence = next; sequence <= available; sequence++) {
+                int index = (int)(sequence & mMask);
+
+                long latency = now - mPublishTimes[index];
+
+                mTotalLatency += latency;
+
+                if (latency > mMaxLatency) {
+                    mMaxLatency = latency;
+                }
+
+                try {
+                    mHandler.onEvent((E)mSlots[index]);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Event handler failed");
+
+                    e.printStackTrace();
+                }
+
+                mConsumed.lazySet(sequence);
+            }
+
+            mBatchCount++;
+
+            if (available - next + 1 > mMaxBatchSize) {
+                mMaxBatchSize = available - next + 1;
+            }
+
+            next = available + 1;
+        }
+
+        Log.d(TAG, "Thread stopped (" + mThread.getName() + ")");
+    }
+
+    interface Factory<E> {
+        E create();
+    }
+
+    interface Handler<E> {
+        void onEvent(E event);
+    }
+}
@@ -0,0 +1,27 @@
+package com.desuuuu.ovrphonebridge;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+class HandlerScheduler implements Scheduler {
+    private final Handler mHandler;
+
+    HandlerScheduler(Looper looper) {
+        mHandler = new Handler(looper);
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public Cancellable schedule(Runnable task, long delay) {
+        Runnable token = task::run;
+
+        mHandler.postDelayed(token, delay);
+
+        return () -> mHandler.removeCallbacks(token);
+    }
+}
@@ -0,0 +1,125 @@
+package com.desuuuu.ovrphonebridge;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+class Heartbeat {
+    private static final String TAG = Heartbeat.class.getSimpleName();
+
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final Runnable mTick = this::tick;
+
+    private long mInterval;
+    private boolean mRunning;
+
+    private long mPingId;
+    private long mPingSentAt;
+    private boolean mPingPending;
+    private int mMissed;
+
+    private double mRtt = -1;
+    private double mRttVariance;
+
+    Heartbeat(Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    void start(long interval) {
+        stop();
+
+        Log.d(TAG, "Starting heartbeat (" + interval + " ms)");
+
+        mInterval = interval;
+        mRunning = true;
+
+        mHandler.postDelayed(mTick, mInterval);
+    }
+
+    void stop() {
+        mHandler.removeCallbacks(mTick);
+
+        mRunning = false;
+        mPingPending = false;
+        mMissed = 0;
+        mRtt = -1;
+        mRttVariance = 0;
+    }
+
+    void onPong(long id) {
+        if (!mRunning) {
+            return;
+        }
+
+        mMissed = 0;
+
+        if (!mPingPending || id != mPingId) {
+            return;
+        }
+
+        mPingPending = false;
+
+        double sample = (SystemClock.elapsedRealtimeNanos() - mPingSentAt) / 1000000.0;
+
+        if (mRtt < 0) {
+            mRtt = sample;
+            mRttVariance = sample / 2;
+        } else {
+            mRttVariance = 0.75 * mRttVariance + 0.25 * Math.abs(mRtt - sample);
+            mRtt = 0.875 * mRtt + 0.125 * sample;
+        }
+
+        mListener.onRttUpdate();
+    }
+
+    long getRtt() {
+        if (mRtt < 0) {
+            return -1;
+        }
+
+        return Math.round(mRtt);
+    }
+
+    long getRttVariance() {
+        return Math.round(mRttVariance);
+    }
+
+    int getMissedCount() {
+        return mMissed;
+    }
+
+    private void tick() {
+        if (!mRunning) {
+            return;
+        }
+
+        if (mPingPending) {
+            mMissed++;
+
+            Log.d(TAG, "Missed pong (" + mMissed + "/" + Constants.HEARTBEAT.MAX_MISSED + ")");
+
+            if (mMissed >= Constants.HEARTBEAT.MAX_MISSED) {
+                stop();
+
+                mListener.onPeerDead();
+                return;
+            }
+
+            mListener.onRttUpdate();
+        }
+
+        mPingId++;
+        mPingSentAt = SystemClock.elapsedRealtimeNanos();
+        mPingPending = mListener.sendPing(mPingId);
+
+        mHandler.postDelayed(mTick, mInterval);
+    }
+
+    interface Listener {
+        boolean sendPing(long id);
+        void onPeerDead();
+        void onRttUpdate();
+    }
+}
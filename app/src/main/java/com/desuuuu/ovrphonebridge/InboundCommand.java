@@ -0,0 +1,215 @@
+package com.desuuuu.ovrphonebridge;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+
+class InboundCommand {
+    static final int TYPE_HANDSHAKE = 0;
+    static final int TYPE_PING = 1;
+    static final int TYPE_PONG = 2;
+    static final int TYPE_REKEY = 3;
+    static final int TYPE_SESSION_TICKET = 4;
+    static final int TYPE_LIST_NOTIFICATIONS = 5;
+    static final int TYPE_DISMISS_NOTIFICATION = 6;
+    static final int TYPE_LIST_SMS = 7;
+    static final int TYPE_LIST_SMS_FROM = 8;
+    static final int TYPE_SEND_SMS = 9;
+
+    static final long NO_ID = -1;
+
+    final int type;
+
+    JSONObject handshake;
+    long id = NO_ID;
+    int epoch;
+    String ticket;
+    long lifetime;
+    String key;
+    String number;
+    int page;
+    String destination;
+    String body;
+
+    private InboundCommand(int type) {
+        this.type = type;
+    }
+
+    static InboundCommand parse(JSONObject message) throws JSONException {
+        return parse(new JsonFields(message));
+    }
+
+    // Decoded CBOR messages are read as they are, only a handshake is turned
+    // into a JSONObject.
+    static InboundCommand parse(Map<String, Object> message) throws JSONException {
+        return parse(new MapFields(message));
+    }
+
+    private static InboundCommand parse(Fields message) throws JSONException {
+        String type = message.getString("type");
+
+        InboundCommand command;
+
+        switch (type) {
+            case "handshake":
+                command = new InboundCommand(TYPE_HANDSHAKE);
+                command.handshake = message.toJSONObject();
+                break;
+
+            case "ping":
+                command = new InboundCommand(TYPE_PING);
+                break;
+
+            case "pong":
+                command = new InboundCommand(TYPE_PONG);
+                break;
+
+            case "rekey":
+                command = new InboundCommand(TYPE_REKEY);
+                command.epoch = (int)message.getLong("epoch");
+                break;
+
+            case "session_ticket":
+                command = new InboundCommand(TYPE_SESSION_TICKET);
+                command.ticket = message.getString("ticket");
+                command.lifetime = (message.has("lifetime")
+                        ? message.getLong("lifetime")
+                        : Constants.RESUMPTION.MAX_LIFETIME / 1000);
+                break;
+
+            case "list_notifications":
+                command = new InboundCommand(TYPE_LIST_NOTIFICATIONS);
+                break;
+
+            case "dismiss_notification":
+                command = new InboundCommand(TYPE_DISMISS_NOTIFICATION);
+                command.key = message.getString("key");
+                break;
+
+            case "list_sms":
+                command = new InboundCommand(TYPE_LIST_SMS);
+                break;
+
+            case "list_sms_from":
+                command = new InboundCommand(TYPE_LIST_SMS_FROM);
+                command.number = message.getString("number");
+                command.page = (message.has("page") ? (int)message.getLong("page") : 0);
+
+                if (command.page < 0) {
+                    throw new JSONException("Invalid page");
+                }
+                break;
+
+            case "send_sms":
+                command = new InboundCommand(TYPE_SEND_SMS);
+                command.destination = message.getString("destination");
+                command.body = message.getString("body");
+                break;
+
+            default:
+                return null;
+        }
+
+        if (message.has("id")) {
+            command.id = message.getLong("id");
+
+            if (command.id < 0) {
+                throw new JSONException("Invalid id");
+            }
+        } else if (command.type == TYPE_PING || command.type == TYPE_PONG) {
+            throw new JSONException("Missing id");
+        }
+
+        return command;
+    }
+
+    private interface Fields {
+        boolean has(String name);
+        String getString(String name) throws JSONException;
+        long getLong(String name) throws JSONException;
+        JSONObject toJSONObject() throws JSONException;
+    }
+
+    private static class JsonFields implements Fields {
+        private final JSONObject mMessage;
+
+        JsonFields(JSONObject message) {
+            mMessage = message;
+        }
+
+        @Override
+        public boolean has(String name) {
+            return mMessage.has(name);
+        }
+
+        @Override
+        public String getString(String name) throws JSONException {
+            return mMessage.getString(name);
+        }
+
+        @Override
+        public long getLong(String name) throws JSONException {
+            return mMessage.getLong(name);
+        }
+
+        @Override
+        public JSONObject toJSONObject() {
+            return mMessage;
+        }
+    }
+
+    // Values are what CborMessageReader produces: strings, longs, booleans,
+    // maps, lists and null.
+    private static class MapFields implements Fields {
+        private final Map<String, Object> mMessage;
+
+        MapFields(Map<String, Object> message) {
+            mMessage = message;
+        }
+
+        @Override
+        public boolean has(String name) {
+            return mMessage.containsKey(name);
+        }
+
+        @Override
+        public String getString(String name) throws JSONException {
+            Object value = mMessage.get(name);
+
+            if (value instanceof String) {
+                return (String)value;
+            }
+
+            if (value instanceof Long || value instanceof Boolean) {
+                return String.valueOf(value);
+            }
+
+            throw new JSONException("Expected a string for " + name);
+        }
+
+        @Override
+        public long getLong(String name) throws JSONException {
+            Object value = mMessage.get(name);
+
+            if (value instanceof Long) {
+                return (Long)value;
+            }
+
+            if (value instanceof String) {
+                try {
+                    return Long.parseLong((String)value);
+                } catch (NumberFormatException e) {
+                    // Falls through to the type error below.
+                }
+            }
+
+            throw new JSONException("Expected a number for " + name);
+        }
+
+        @Override
+        public JSONObject toJSONObject() throws JSONException {
+            return new JSONObject(mMessage);
+        }
+    }
+}
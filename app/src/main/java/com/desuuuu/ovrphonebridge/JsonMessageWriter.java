@@ -0,0 +1,255 @@
+package com.desuuuu.ovrphonebridge;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Writes the same output as android.util.JsonWriter without its stream and
+// state stack, callers are trusted to nest correctly.
+class JsonMessageWriter implements MessageWriter {
+    static final byte[] BATCH_PREFIX = "{\"type\":\"batch\",\"messages\":[".getBytes(StandardCharsets.UTF_8);
+    static final byte[] BATCH_SEPARATOR = ",".getBytes(StandardCharsets.UTF_8);
+    static final byte[] BATCH_SUFFIX = "]}".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+    private byte[] mBuffer = new byte[Constants.CRYPTO.BUFFER_SIZE];
+    private int mLength;
+
+    private boolean mSeparator;
+
+    @Override
+    public MessageWriter reset() {
+        mLength = 0;
+        mSeparator = false;
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter beginObject() {
+        separate();
+        writeByte('{');
+        mSeparator = false;
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter endObject() {
+        writeByte('}');
+        mSeparator = true;
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter beginArray() {
+        separate();
+        writeByte('[');
+        mSeparator = false;
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter endArray() {
+        writeByte(']');
+        mSeparator = true;
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter name(String name) {
+        separate();
+        writeString(name);
+        writeByte(':');
+        mSeparator = false;
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter value(String value) {
+        separate();
+
+        if (value == null) {
+            writeBytes(NULL);
+        } else {
+            writeString(value);
+        }
+
+        mSeparator = true;
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter value(long value) {
+        separate();
+        writeLong(value);
+        mSeparator = true;
+
+        return this;
+    }
+
+    @Override
+    public MessageWriter value(boolean value) {
+        separate();
+        writeBytes(value ? TRUE : FALSE);
+        mSeparator = true;
+
+        return this;
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mLength);
+    }
+
+    private void separate() {
+        if (mSeparator) {
+            writeByte(',');
+        }
+    }
+
+    // Encodes UTF-8 as it escapes, no character takes more than the six
+    // bytes of a unicode escape. Unpaired surrogates become '?', as they did
+    // when the string was encoded by the platform.
+    private void writeString(String value) {
+        ensureCapacity(value.length() * 6 + 2);
+
+        mBuffer[mLength++] = '"';
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '"':
+                case '\\':
+                    writeEscape(c);
+                    break;
+
+                case '\t':
+                    writeEscape('t');
+                    break;
+
+                case '\b':
+                    writeEscape('b');
+                    break;
+
+                case '\n':
+                    writeEscape('n');
+                    break;
+
+                case '\r':
+                    writeEscape('r');
+                    break;
+
+                case '\f':
+                    writeEscape('f');
+                    break;
+
+                case '\u2028':
+                case '\u2029':
+                    writeUnicodeEscape(c);
+                    break;
+
+                default:
+                    if (c <= 0x1f) {
+                        writeUnicodeEscape(c);
+                    } else if (c < 0x80) {
+                        mBuffer[mLength++] = (byte)c;
+                    } else if (c < 0x800) {
+                        mBuffer[mLength++] = (byte)(0xc0 | c >> 6);
+                        mBuffer[mLength++] = (byte)(0x80 | c & 0x3f);
+                    } else if (Character.isHighSurrogate(c)
+                            && i + 1 < value.length()
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+
+                        mBuffer[mLength++] = (byte)(0xf0 | codePoint >> 18);
+                        mBuffer[mLength++] = (byte)(0x80 | codePoint >> 12 & 0x3f);
+                        mBuffer[mLength++] = (byte)(0x80 | codePoint >> 6 & 0x3f);
+                        mBuffer[mLength++] = (byte)(0x80 | codePoint & 0x3f);
+                    } else if (Character.isSurrogate(c)) {
+                        mBuffer[mLength++] = '?';
+                    } else {
+                        mBuffer[mLength++] = (byte)(0xe0 | c >> 12);
+                        mBuffer[mLength++] = (byte)(0x80 | c >> 6 & 0x3f);
+                        mBuffer[mLength++] = (byte)(0x80 | c & 0x3f);
+                    }
+                    break;
+            }
+        }
+
+        mBuffer[mLength++] = '"';
+    }
+
+    private void writeEscape(char c) {
+        mBuffer[mLength++] = '\\';
+        mBuffer[mLength++] = (byte)c;
+    }
+
+    private void writeUnicodeEscape(char c) {
+        mBuffer[mLength++] = '\\';
+        mBuffer[mLength++] = 'u';
+
+        for (int shift = 12; shift >= 0; shift -= 4) {
+            mBuffer[mLength++] = HEX[(c >> shift) & 0xf];
+        }
+    }
+
+    private void writeLong(long value) {
+        ensureCapacity(20);
+
+        if (value == Long.MIN_VALUE) {
+            writeBytes(Long.toString(value).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        if (value < 0) {
+            mBuffer[mLength++] = '-';
+            value = -value;
+        }
+
+        int start = mLength;
+
+        do {
+            mBuffer[mLength++] = (byte)('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            byte b = mBuffer[i];
+
+            mBuffer[i] = mBuffer[j];
+            mBuffer[j] = b;
+        }
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+
+        System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+
+        mLength += bytes.length;
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+
+        mBuffer[mLength++] = (byte)value;
+    }
+
+    private void ensureCapacity(int length) {
+        if (mBuffer.length - mLength >= length) {
+            return;
+        }
+
+        mBuffer = Arrays.copyOf(mBuffer, Math.max(mLength + length, mBuffer.length * 2));
+    }
+}
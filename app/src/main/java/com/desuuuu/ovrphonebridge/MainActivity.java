@@ -8,6 +8,8 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.Bundle;
@@ -29,6 +31,7 @@ import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.ArrayList;
 import java.util.Objects;
 import java.util.Set;
 
@@ -44,6 +47,7 @@ public class MainActivity extends AppCompatActivity implements CompoundButton.On
 
     private boolean mActivityVisible = false;
     private int mConnectionStatus = Constants.SERVICE.STATUS_STOPPED;
+    private long mConnectionRtt = -1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -156,7 +160,11 @@ public class MainActivity extends AppCompatActivity implements CompoundButton.On
             case Constants.SERVICE.STATUS_CONNECTED:
                 mServiceSwitch.setChecked(true);
 
-                mServiceText.setText(R.string.connected);
+                if (mConnectionRtt >= 0) {
+                    mServiceText.setText(getString(R.string.connected_rtt, mConnectionRtt));
+                } else {
+                    mServiceText.setText(R.string.connected);
+                }
                 break;
 
             default:
@@ -323,6 +331,7 @@ public class MainActivity extends AppCompatActivity implements CompoundButton.On
         @Override
         public void onReceive(Context context, Intent intent) {
             mConnectionStatus = intent.getIntExtra("status", Constants.SERVICE.STATUS_STOPPED);
+            mConnectionRtt = intent.getLongExtra("rtt", -1);
 
             String message = intent.getStringExtra("message");
 
@@ -346,6 +355,20 @@ public class MainActivity extends AppCompatActivity implements CompoundButton.On
         }
     }
 
+    public static String[] splitServerAddresses(String serverAddress) {
+        ArrayList<String> result = new ArrayList<>();
+
+        for (String address : serverAddress.split(",")) {
+            address = address.trim();
+
+            if (!address.isEmpty()) {
+                result.add(address);
+            }
+        }
+
+        return result.toArray(new String[0]);
+    }
+
     public static String getDeviceName() {
         String result;
 
@@ -375,6 +398,19 @@ public class MainActivity extends AppCompatActivity implements CompoundButton.On
         ConnectivityManager connectivityManager = (ConnectivityManager)context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
 
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Network network = connectivityManager.getActiveNetwork();
+
+            if (network == null) {
+                return false;
+            }
+
+            NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+
+            return (capabilities != null
+                    && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET));
+        }
+
         NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
 
         return (networkInfo != null && networkInfo.isConnected());
@@ -0,0 +1,70 @@
+package com.desuuuu.ovrphonebridge;
+
+import java.util.HashMap;
+
+class MessageTags {
+    // Append only, the index of each entry is its tag on the wire.
+    private static final String[] TAGS = {
+            "type",
+            "id",
+            "key",
+            "app_name",
+            "title",
+            "text",
+            "persistent",
+            "notification",
+            "list",
+            "name",
+            "number",
+            "body",
+            "date",
+            "page",
+            "success",
+            "sms",
+            "destination",
+            "messages",
+            "epoch",
+            "ticket",
+            "lifetime",
+            "ping",
+            "pong",
+            "batch",
+            "rekey",
+            "session_ticket",
+            "notification_received",
+            "notification_removed",
+            "notification_list",
+            "list_notifications",
+            "dismiss_notification",
+            "sms_list",
+            "sms_from_list",
+            "sms_sent",
+            "list_sms",
+            "list_sms_from",
+            "send_sms",
+            "in",
+            "out"
+    };
+
+    private static final HashMap<String, Integer> sTags = new HashMap<>();
+
+    static {
+        for (int i = 0; i < TAGS.length; i++) {
+            sTags.put(TAGS[i], i);
+        }
+    }
+
+    static int get(String name) {
+        Integer tag = sTags.get(name);
+
+        return (tag != null ? tag : -1);
+    }
+
+    static String get(long tag) {
+        if (tag < 0 || tag >= TAGS.length) {
+            return null;
+        }
+
+        return TAGS[(int)tag];
+    }
+}
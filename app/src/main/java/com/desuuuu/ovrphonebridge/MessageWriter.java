@@ -0,0 +1,16 @@
+package com.desuuuu.ovrphonebridge;
+
+import java.io.IOException;
+
+interface MessageWriter {
+    MessageWriter reset() throws IOException;
+    MessageWriter beginObject() throws IOException;
+    MessageWriter endObject() throws IOException;
+    MessageWriter beginArray() throws IOException;
+    MessageWriter endArray() throws IOException;
+    MessageWriter name(String name) throws IOException;
+    MessageWriter value(String value) throws IOException;
+    MessageWriter value(long value) throws IOException;
+    MessageWriter value(boolean value) throws IOException;
+    byte[] toByteArray() throws IOException;
+}
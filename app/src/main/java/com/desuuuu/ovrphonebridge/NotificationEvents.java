@@ -0,0 +1,119 @@
+package com.desuuuu.ovrphonebridge;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.Locale;
+
+// Events are captured on the main thread, which is the only producer, and
+// delivered to the listener on the ring's own thread. Single notifications are
+// copied into the record owned by the slot, so posting them allocates nothing.
+class NotificationEvents {
+    private static final String TAG = "NotificationEvents";
+
+    private static final int TYPE_RECEIVED = 0;
+    private static final int TYPE_REMOVED = 1;
+    private static final int TYPE_LIST = 2;
+
+    private static volatile EventRing<Event> sRing;
+
+    static void start(Listener listener) {
+        stop();
+
+        sRing = new EventRing<>(
+                "NotificationEventThread",
+                Constants.NOTIFICATION.EVENT_RING_SIZE,
+                Event::new,
+                event -> dispatch(listener, event));
+    }
+
+    static void stop() {
+        EventRing<Event> ring = sRing;
+
+        if (ring == null) {
+            return;
+        }
+
+        sRing = null;
+
+        ring.quit();
+
+        Log.d(TAG, String.format(Locale.US,
+                "Events: %d published, %d dropped, %d batches (max %d), %.0f us average and %.0f us max latency",
+                ring.getPublishedCount(),
+                ring.getDroppedCount(),
+                ring.getBatchCount(),
+                ring.getMaxBatchSize(),
+                ring.getAverageLatencyUs(),
+                ring.getMaxLatencyUs()));
+    }
+
+    static void postReceived(NotificationRecord notification) {
+        post(TYPE_RECEIVED, notification, null);
+    }
+
+    static void postRemoved(NotificationRecord notification) {
+        post(TYPE_REMOVED, notification, null);
+    }
+
+    static void postList(List<NotificationRecord> notifications) {
+        post(TYPE_LIST, null, notifications);
+    }
+
+    // Only the fields of notification are kept, the caller may reuse it.
+    private static void post(int type, NotificationRecord notification, List<NotificationRecord> notifications) {
+        EventRing<Event> ring = sRing;
+
+        if (ring == null) {
+            return;
+        }
+
+        Event event = ring.claim();
+
+        if (event == null) {
+            Log.e(TAG, "Event ring full, dropping event");
+            return;
+        }
+
+        event.type = type;
+        event.notifications = notifications;
+
+        if (notification != null) {
+            event.notification.set(notification);
+        }
+
+        ring.publish();
+    }
+
+    private static void dispatch(Listener listener, Event event) {
+        switch (event.type) {
+            case TYPE_RECEIVED:
+                listener.onNotificationReceived(event.notification);
+                break;
+
+            case TYPE_REMOVED:
+                listener.onNotificationRemoved(event.notification);
+                break;
+
+            case TYPE_LIST:
+                listener.onNotificationList(event.notifications);
+                break;
+        }
+
+        event.notifications = null;
+    }
+
+    private static class Event {
+        final NotificationRecord notification = new NotificationRecord();
+
+        int type;
+        List<NotificationRecord> notifications;
+    }
+
+    // Single records are only valid for the duration of the call.
+    interface Listener {
+        void onNotificationReceived(NotificationRecord notification);
+        void onNotificationRemoved(NotificationRecord notification);
+        void onNotificationList(List<NotificationRecord> notifications);
+    }
+}
@@ -0,0 +1,25 @@
+package com.desuuuu.ovrphonebridge;
+
+// Mutable so that event ring slots and the parser can reuse instances.
+class NotificationRecord {
+    String key;
+    String appName;
+    String title;
+    String text;
+    boolean persistent;
+
+    NotificationRecord set(String key, String appName, String title, String text, boolean persistent) {
+        this.key = key;
+        this.appName = appName;
+        this.title = title;
+        this.text = text;
+        this.persistent = persistent;
+
+        return this;
+    }
+
+    NotificationRecord set(NotificationRecord notification) {
+        return set(notification.key, notification.appName, notification.title, notification.text,
+                notification.persistent);
+    }
+}
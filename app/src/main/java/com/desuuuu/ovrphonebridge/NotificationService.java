@@ -15,10 +15,7 @@ import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
 import android.text.TextUtils;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Scanner;
@@ -37,6 +34,10 @@ public class NotificationService extends NotificationListenerService implements
     private Set<String> mExcludedApplications;
     private String mLineSeparator;
 
+    // Scratch record for posted and removed notifications, the event ring
+    // copies it into its own slot.
+    private final NotificationRecord mNotification = new NotificationRecord();
+
     private static final String ELLIPSIS = "…";
 
     @Override
@@ -113,31 +114,15 @@ public class NotificationService extends NotificationListenerService implements
 
     @Override
     public void onNotificationPosted(StatusBarNotification sbn) {
-        if (mBroadcastManager != null) {
-            JSONObject notification = parseNotification(sbn);
-
-            if (notification != null) {
-                Intent result = new Intent(Constants.INTENT.NOTIFICATION_RECEIVED);
-
-                result.putExtra("notification", notification.toString());
-
-                mBroadcastManager.sendBroadcast(result);
-            }
+        if (mConnected && parseNotification(sbn, false, mNotification)) {
+            NotificationEvents.postReceived(mNotification);
         }
     }
 
     @Override
     public void onNotificationRemoved(StatusBarNotification sbn) {
-        if (mBroadcastManager != null) {
-            JSONObject notification = parseNotification(sbn, true);
-
-            if (notification != null) {
-                Intent result = new Intent(Constants.INTENT.NOTIFICATION_REMOVED);
-
-                result.putExtra("notification", notification.toString());
-
-                mBroadcastManager.sendBroadcast(result);
-            }
+        if (mConnected && parseNotification(sbn, true, mNotification)) {
+            NotificationEvents.postRemoved(mNotification);
         }
     }
 
@@ -150,99 +135,89 @@ public class NotificationService extends NotificationListenerService implements
         }
     }
 
-    private JSONObject parseNotification(StatusBarNotification notification) {
-        return parseNotification(notification, false);
+    private NotificationRecord parseNotification(StatusBarNotification notification) {
+        NotificationRecord record = new NotificationRecord();
+
+        return (parseNotification(notification, false, record) ? record : null);
     }
 
-    private JSONObject parseNotification(StatusBarNotification notification, boolean ignoreFilters) {
+    private boolean parseNotification(StatusBarNotification notification, boolean ignoreFilters,
+                                      NotificationRecord record) {
         String packageName = notification.getPackageName();
 
         if (packageName.equals(getPackageName())) {
-            return null;
+            return false;
         }
 
         if ((notification.getNotification().flags & Notification.FLAG_LOCAL_ONLY) != 0
                 || (notification.getNotification().flags & Notification.FLAG_GROUP_SUMMARY) != 0) {
-            return null;
+            return false;
         }
 
         if (!ignoreFilters && mExcludedApplications.contains(packageName)) {
-            return null;
+            return false;
         }
 
-        JSONObject result = new JSONObject();
+        String applicationName = getApplicationName(packageName);
 
-        try {
-            result.put("key", notification.getKey());
-
-            String applicationName = getApplicationName(packageName);
-
-            if (applicationName == null) {
-                return null;
-            }
+        if (applicationName == null) {
+            return false;
+        }
 
-            applicationName = applicationName.trim();
+        applicationName = applicationName.trim();
 
-            if (applicationName.length() < 1) {
-                return null;
-            }
-
-            result.put("app_name", applicationName);
+        if (applicationName.length() < 1) {
+            return false;
+        }
 
-            Bundle extras = notification.getNotification().extras;
+        Bundle extras = notification.getNotification().extras;
 
-            String title = "";
+        String title = "";
 
-            CharSequence extraBigTitle = extras.getCharSequence(Notification.EXTRA_TITLE_BIG);
+        CharSequence extraBigTitle = extras.getCharSequence(Notification.EXTRA_TITLE_BIG);
 
-            if (extraBigTitle != null && TextUtils.getTrimmedLength(extraBigTitle) > 0) {
-                title = extraBigTitle.toString().trim();
-            } else {
-                CharSequence extraTitle = extras.getCharSequence(Notification.EXTRA_TITLE);
+        if (extraBigTitle != null && TextUtils.getTrimmedLength(extraBigTitle) > 0) {
+            title = extraBigTitle.toString().trim();
+        } else {
+            CharSequence extraTitle = extras.getCharSequence(Notification.EXTRA_TITLE);
 
-                if (extraTitle != null && TextUtils.getTrimmedLength(extraTitle) > 0) {
-                    title = extraTitle.toString().trim();
-                }
+            if (extraTitle != null && TextUtils.getTrimmedLength(extraTitle) > 0) {
+                title = extraTitle.toString().trim();
             }
+        }
 
-            title = title.replaceAll(" +", " ");
-            title = ellipsize(title, Constants.NOTIFICATION.MAX_TITLE_LENGTH, true);
-
-            if (title.length() < 1) {
-                return null;
-            }
+        title = title.replaceAll(" +", " ");
+        title = ellipsize(title, Constants.NOTIFICATION.MAX_TITLE_LENGTH, true);
 
-            result.put("title", title);
+        if (title.length() < 1) {
+            return false;
+        }
 
-            String text = "";
+        String text = "";
 
-            CharSequence extraBigText = extras.getCharSequence(Notification.EXTRA_BIG_TEXT);
+        CharSequence extraBigText = extras.getCharSequence(Notification.EXTRA_BIG_TEXT);
 
-            if (extraBigText != null && TextUtils.getTrimmedLength(extraBigText) > 0) {
-                text = extraBigText.toString().trim();
-            } else {
-                CharSequence extraText = extras.getCharSequence(Notification.EXTRA_TEXT);
+        if (extraBigText != null && TextUtils.getTrimmedLength(extraBigText) > 0) {
+            text = extraBigText.toString().trim();
+        } else {
+            CharSequence extraText = extras.getCharSequence(Notification.EXTRA_TEXT);
 
-                if (extraText != null && TextUtils.getTrimmedLength(extraText) > 0) {
-                    text = extraText.toString().trim();
-                }
+            if (extraText != null && TextUtils.getTrimmedLength(extraText) > 0) {
+                text = extraText.toString().trim();
             }
+        }
 
-            text = text.replaceAll(" +", " ");
-            text = ellipsize(text, Constants.NOTIFICATION.MAX_TEXT_LENGTH, false);
-
-            if (text.length() > 0) {
-                result.put("text", text);
-            }
+        text = text.replaceAll(" +", " ");
+        text = ellipsize(text, Constants.NOTIFICATION.MAX_TEXT_LENGTH, false);
 
-            if (!notification.isClearable()) {
-                result.put("persistent", true);
-            }
-        } catch (JSONException e) {
-            return null;
-        }
+        record.set(
+                notification.getKey(),
+                applicationName,
+                title,
+                (text.length() > 0 ? text : null),
+                !notification.isClearable());
 
-        return result;
+        return true;
     }
 
     private String getApplicationName(String packageName) {
@@ -355,25 +330,21 @@ public class NotificationService extends NotificationListenerService implements
         @Override
         public void onReceive(Context context, Intent intent) {
             if (mConnected) {
-                Intent result = new Intent(Constants.INTENT.NOTIFICATION_LIST);
-
-                JSONArray array = new JSONArray();
+                ArrayList<NotificationRecord> records = new ArrayList<>();
 
                 StatusBarNotification[] notifications = getActiveNotifications();
 
                 if (notifications != null) {
                     for (StatusBarNotification notification : notifications) {
-                        JSONObject object = parseNotification(notification);
+                        NotificationRecord record = parseNotification(notification);
 
-                        if (object != null) {
-                            array.put(object);
+                        if (record != null) {
+                            records.add(record);
                         }
                     }
                 }
 
-                result.putExtra("notifications", array.toString());
-
-                mBroadcastManager.sendBroadcast(result);
+                NotificationEvents.postList(records);
             }
         }
     }
@@ -0,0 +1,50 @@
+package com.desuuuu.ovrphonebridge;
+
+import java.util.Collection;
+
+class OutboundMessage {
+    static final int TYPE_OTHER = 0;
+    static final int TYPE_NOTIFICATION_RECEIVED = 1;
+    static final int TYPE_NOTIFICATION_REMOVED = 2;
+    static final int TYPE_NOTIFICATION_LIST = 3;
+    static final int TYPE_REKEY = 4;
+
+    final int priority;
+    final int type;
+    final String key;
+    final Collection<String> keys;
+    final boolean raw;
+
+    byte[] payload;
+    int generation;
+    boolean cancelled;
+
+    private OutboundMessage(int priority, int type, String key, Collection<String> keys, boolean raw, byte[] payload) {
+        this.priority = priority;
+        this.type = type;
+        this.key = key;
+        this.keys = keys;
+        this.raw = raw;
+        this.payload = payload;
+    }
+
+    static OutboundMessage raw(byte[] payload) {
+        return new OutboundMessage(Constants.PRIORITY.CONTROL, TYPE_OTHER, null, null, true, payload);
+    }
+
+    static OutboundMessage create(int priority, byte[] payload) {
+        return new OutboundMessage(priority, TYPE_OTHER, null, null, false, payload);
+    }
+
+    static OutboundMessage rekey(byte[] payload) {
+        return new OutboundMessage(Constants.PRIORITY.CONTROL, TYPE_REKEY, null, null, false, payload);
+    }
+
+    static OutboundMessage notification(int type, String key, byte[] payload) {
+        return new OutboundMessage(Constants.PRIORITY.REALTIME, type, key, null, false, payload);
+    }
+
+    static OutboundMessage notificationList(Collection<String> keys, byte[] payload) {
+        return new OutboundMessage(Constants.PRIORITY.BULK, TYPE_NOTIFICATION_LIST, null, keys, false, payload);
+    }
+}
@@ -0,0 +1,184 @@
+package com.desuuuu.ovrphonebridge;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+class OutboundQueue {
+    private final List<ArrayDeque<OutboundMessage>> mQueues = new ArrayList<>(Constants.PRIORITY.BULK + 1);
+    private final HashMap<String, OutboundMessage> mPendingReceived = new HashMap<>();
+    private final HashSet<String> mSentKeys = new HashSet<>();
+
+    private final int mMaxMessages;
+    private final int mMaxSize;
+
+    private int mCount;
+    private int mSize;
+
+    private volatile long mDropped;
+    private volatile long mMerged;
+
+    OutboundQueue(int maxMessages, int maxSize) {
+        for (int i = 0; i <= Constants.PRIORITY.BULK; i++) {
+            mQueues.add(new ArrayDeque<>());
+        }
+
+        mMaxMessages = maxMessages;
+        mMaxSize = maxSize;
+    }
+
+    // Notification updates only merge with messages queued for the same
+    // connection, whose payloads were encoded for the same session. A
+    // pending message from an older connection is dropped when polled.
+    synchronized boolean offer(OutboundMessage message) {
+        switch (message.type) {
+            case OutboundMessage.TYPE_NOTIFICATION_RECEIVED:
+                OutboundMessage pending = mPendingReceived.get(message.key);
+
+                if (pending != null && pending.generation == message.generation) {
+                    mSize += message.payload.length - pending.payload.length;
+
+                    pending.payload = message.payload;
+
+                    mMerged++;
+                    return true;
+                }
+                break;
+
+            case OutboundMessage.TYPE_NOTIFICATION_REMOVED:
+                OutboundMessage received = mPendingReceived.get(message.key);
+
+                if (received != null && received.generation == message.generation) {
+                    cancel(received);
+
+                    mMerged++;
+
+                    if (!mSentKeys.contains(message.key)) {
+                        // The server never saw this notification.
+                        return true;
+                    }
+                }
+                break;
+        }
+
+        if (message.priority > Constants.PRIORITY.INTERACTIVE
+                && (mCount >= mMaxMessages || mSize + message.payload.length > mMaxSize)) {
+            mDropped++;
+            return false;
+        }
+
+        mQueues.get(message.priority).add(message);
+
+        mCount++;
+        mSize += message.payload.length;
+
+        if (message.type == OutboundMessage.TYPE_NOTIFICATION_RECEIVED) {
+            mPendingReceived.put(message.key, message);
+        }
+
+        return true;
+    }
+
+    // Messages from older connections are dropped. Messages queued for a
+    // newer connection stay at the head until that connection polls them.
+    synchronized OutboundMessage poll(int priority, int generation) {
+        ArrayDeque<OutboundMessage> queue = mQueues.get(priority);
+        OutboundMessage message;
+
+        while ((message = queue.peek()) != null && message.generation <= generation) {
+            queue.poll();
+
+            if (message.cancelled) {
+                continue;
+            }
+
+            remove(message);
+
+            if (message.generation == generation) {
+                onSent(message);
+
+                return message;
+            }
+        }
+
+        return null;
+    }
+
+    synchronized boolean isEmpty(int priority, int generation) {
+        ArrayDeque<OutboundMessage> queue = mQueues.get(priority);
+
+        while (!queue.isEmpty() && queue.peek().cancelled) {
+            queue.poll();
+        }
+
+        return (queue.isEmpty() || queue.peek().generation > generation);
+    }
+
+    synchronized boolean isEmpty(int generation) {
+        for (int priority = 0; priority < mQueues.size(); priority++) {
+            if (!isEmpty(priority, generation)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    synchronized boolean isEmpty() {
+        return (mCount == 0);
+    }
+
+    synchronized void discard(int generation) {
+        for (ArrayDeque<OutboundMessage> queue : mQueues) {
+            for (OutboundMessage message : queue) {
+                if (message.generation < generation && !message.cancelled) {
+                    cancel(message);
+                }
+            }
+        }
+
+        mSentKeys.clear();
+    }
+
+    long getDroppedCount() {
+        return mDropped;
+    }
+
+    long getMergedCount() {
+        return mMerged;
+    }
+
+    private void onSent(OutboundMessage message) {
+        switch (message.type) {
+            case OutboundMessage.TYPE_NOTIFICATION_RECEIVED:
+                mSentKeys.add(message.key);
+                break;
+
+            case OutboundMessage.TYPE_NOTIFICATION_REMOVED:
+                mSentKeys.remove(message.key);
+                break;
+
+            case OutboundMessage.TYPE_NOTIFICATION_LIST:
+                mSentKeys.addAll(message.keys);
+                break;
+        }
+    }
+
+    private void cancel(OutboundMessage message) {
+        message.cancelled = true;
+
+        remove(message);
+    }
+
+    private void remove(OutboundMessage message) {
+        mCount--;
+        mSize -= message.payload.length;
+
+        if (message.type == OutboundMessage.TYPE_NOTIFICATION_RECEIVED
+                && mPendingReceived.get(message.key) == message) {
+            mPendingReceived.remove(message.key);
+        }
+    }
+}
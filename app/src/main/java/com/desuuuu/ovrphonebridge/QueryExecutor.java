@@ -0,0 +1,113 @@
+package com.desuuuu.ovrphonebridge;
+
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.core.os.CancellationSignal;
+import androidx.core.os.OperationCanceledException;
+
+class QueryExecutor {
+    private static final String TAG = "QueryExecutor";
+
+    private final ThreadPoolExecutor mExecutor;
+    private final HashSet<CancellationSignal> mSignals = new HashSet<>();
+
+    private final AtomicLong mCompletedCount = new AtomicLong();
+    private final AtomicLong mCancelledCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    QueryExecutor(int threads, int maxPending) {
+        mExecutor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                Constants.QUERY.KEEP_ALIVE,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(maxPending),
+                runnable -> new Thread(runnable, "QueryThread"));
+
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    boolean submit(Query query) {
+        CancellationSignal signal = new CancellationSignal();
+
+        synchronized (mSignals) {
+            mSignals.add(signal);
+        }
+
+        try {
+            mExecutor.execute(() -> run(query, signal));
+        } catch (RejectedExecutionException e) {
+            synchronized (mSignals) {
+                mSignals.remove(signal);
+            }
+
+            mRejectedCount.incrementAndGet();
+
+            Log.e(TAG, "Query rejected, too many pending queries");
+            return false;
+        }
+
+        return true;
+    }
+
+    void cancelAll() {
+        synchronized (mSignals) {
+            for (CancellationSignal signal : mSignals) {
+                signal.cancel();
+            }
+
+            mSignals.clear();
+        }
+    }
+
+    void shutdown() {
+        cancelAll();
+
+        mExecutor.shutdownNow();
+    }
+
+    long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    long getCancelledCount() {
+        return mCancelledCount.get();
+    }
+
+    long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    private void run(Query query, CancellationSignal signal) {
+        try {
+            signal.throwIfCanceled();
+
+            query.run(signal);
+
+            mCompletedCount.incrementAndGet();
+        } catch (OperationCanceledException e) {
+            Log.d(TAG, "Query cancelled");
+
+            mCancelledCount.incrementAndGet();
+        } catch (Exception e) {
+            Log.e(TAG, "Query failed");
+
+            e.printStackTrace();
+        } finally {
+            synchronized (mSignals) {
+                mSignals.remove(signal);
+            }
+        }
+    }
+
+    interface Query {
+        void run(CancellationSignal signal) throws Exception;
+    }
+}
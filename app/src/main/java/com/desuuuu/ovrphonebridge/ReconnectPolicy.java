@@ -0,0 +1,7 @@
+package com.desuuuu.ovrphonebridge;
+
+interface ReconnectPolicy {
+    long nextDelay();
+    int getAttempt();
+    void reset();
+}
@@ -0,0 +1,10 @@
+package com.desuuuu.ovrphonebridge;
+
+interface Scheduler {
+    long now();
+    Cancellable schedule(Runnable task, long delay);
+
+    interface Cancellable {
+        void cancel();
+    }
+}
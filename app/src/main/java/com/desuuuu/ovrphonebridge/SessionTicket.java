@@ -0,0 +1,50 @@
+package com.desuuuu.ovrphonebridge;
+
+import android.os.SystemClock;
+
+class SessionTicket {
+    final byte[] ticket;
+    final byte[] secret;
+    final String serverIdentifier;
+    final String serverAddress;
+    final int serverPort;
+    final boolean binaryFraming;
+    final boolean batching;
+    final boolean fragments;
+    final boolean binaryEncoding;
+    final boolean heartbeat;
+    final boolean rekey;
+    final String compression;
+    final String cipherSuite;
+    final boolean streaming;
+
+    private final long mExpiry;
+
+    SessionTicket(byte[] ticket, byte[] secret, String serverIdentifier, String serverAddress, int serverPort,
+                  boolean binaryFraming, boolean batching, boolean fragments, boolean binaryEncoding,
+                  boolean heartbeat, boolean rekey, String compression, String cipherSuite, boolean streaming,
+                  long lifetime) {
+        this.ticket = ticket;
+        this.secret = secret;
+        this.serverIdentifier = serverIdentifier;
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.binaryFraming = binaryFraming;
+        this.batching = batching;
+        this.fragments = fragments;
+        this.binaryEncoding = binaryEncoding;
+        this.heartbeat = heartbeat;
+        this.rekey = rekey;
+        this.compression = compression;
+        this.cipherSuite = cipherSuite;
+        this.streaming = streaming;
+
+        mExpiry = SystemClock.elapsedRealtime() + lifetime;
+    }
+
+    boolean isValid(String serverAddress, int serverPort) {
+        return (this.serverAddress.equals(serverAddress)
+                && this.serverPort == serverPort
+                && SystemClock.elapsedRealtime() < mExpiry);
+    }
+}
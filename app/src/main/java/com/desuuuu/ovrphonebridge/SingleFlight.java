@@ -0,0 +1,98 @@
+package com.desuuuu.ovrphonebridge;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+// Coalesces identical requests while one of them is in flight. The first
+// caller for a key leads and runs the request, later callers only add their
+// id and are answered from the leader's result.
+class SingleFlight {
+    private final HashMap<String, Flight> mFlights = new HashMap<>();
+    private final long mTimeout;
+
+    private long mCoalescedCount;
+
+    SingleFlight(long timeout) {
+        mTimeout = timeout;
+    }
+
+    // Returns the flight to run when the caller leads, null when it joined.
+    synchronized Flight join(String key, long id) {
+        long now = SystemClock.elapsedRealtime();
+
+        Flight flight = mFlights.get(key);
+
+        if (flight == null) {
+            flight = new Flight(key, now);
+
+            mFlights.put(key, flight);
+        } else if (now - flight.mStart >= mTimeout) {
+            Flight stale = flight;
+
+            flight = new Flight(key, now);
+            flight.mIds.addAll(stale.mIds);
+
+            stale.mIds.clear();
+
+            mFlights.put(key, flight);
+        } else {
+            flight.mIds.add(id);
+
+            mCoalescedCount++;
+
+            return null;
+        }
+
+        flight.mIds.add(id);
+
+        return flight;
+    }
+
+    // Detaches the flight and returns the ids waiting on it. Requests arriving
+    // afterwards start a new flight.
+    synchronized long[] complete(Flight flight) {
+        if (flight == null) {
+            return new long[0];
+        }
+
+        if (mFlights.get(flight.mKey) == flight) {
+            mFlights.remove(flight.mKey);
+        }
+
+        long[] ids = new long[flight.mIds.size()];
+        int i = 0;
+
+        for (long id : flight.mIds) {
+            ids[i++] = id;
+        }
+
+        flight.mIds.clear();
+
+        return ids;
+    }
+
+    synchronized void clear() {
+        for (Flight flight : mFlights.values()) {
+            flight.mIds.clear();
+        }
+
+        mFlights.clear();
+    }
+
+    synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    static class Flight {
+        private final String mKey;
+        private final long mStart;
+        private final LinkedHashSet<Long> mIds = new LinkedHashSet<>();
+
+        private Flight(String key, long start) {
+            mKey = key;
+            mStart = start;
+        }
+    }
+}
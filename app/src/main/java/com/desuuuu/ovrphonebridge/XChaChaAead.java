@@ -0,0 +1,71 @@
+package com.desuuuu.ovrphonebridge;
+
+import org.libsodium.jni.NaCl;
+import org.libsodium.jni.Sodium;
+
+class XChaChaAead implements Aead {
+    private static final byte[] EMPTY = new byte[0];
+    private static final int NONCE_SIZE;
+    private static final int TAG_SIZE;
+
+    static {
+        NaCl.sodium();
+
+        NONCE_SIZE = Sodium.crypto_aead_xchacha20poly1305_ietf_npubbytes();
+        TAG_SIZE = Sodium.crypto_aead_xchacha20poly1305_ietf_abytes();
+    }
+
+    private final int[] mEncryptLength = new int[1];
+    private final int[] mDecryptLength = new int[1];
+
+    @Override
+    public String getName() {
+        return Crypto.CIPHER_XCHACHA20POLY1305;
+    }
+
+    @Override
+    public int getNonceSize() {
+        return NONCE_SIZE;
+    }
+
+    @Override
+    public int getTagSize() {
+        return TAG_SIZE;
+    }
+
+    @Override
+    public int encrypt(byte[] output, byte[] input, int length, byte[] ad, int adLength, byte[] nonce, byte[] key) throws Exception {
+        if (Sodium.crypto_aead_xchacha20poly1305_ietf_encrypt(
+                output,
+                mEncryptLength,
+                input,
+                length,
+                ad,
+                adLength,
+                EMPTY,
+                nonce,
+                key) != 0) {
+            throw new Exception("Encryption failed");
+        }
+
+        return mEncryptLength[0];
+    }
+
+    @Override
+    public int decrypt(byte[] output, byte[] input, int length, byte[] ad, int adLength, byte[] nonce, byte[] key) throws Exception {
+        if (Sodium.crypto_aead_xchacha20poly1305_ietf_decrypt(
+                output,
+                mDecryptLength,
+                EMPTY,
+                input,
+                length,
+                ad,
+                adLength,
+                nonce,
+                key) != 0) {
+            throw new Exception("Decryption failed");
+        }
+
+        return mDecryptLength[0];
+    }
+}
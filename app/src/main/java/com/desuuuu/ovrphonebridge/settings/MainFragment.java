@@ -26,6 +26,7 @@ import java.util.Set;
 
 import androidx.annotation.NonNull;
 import androidx.preference.EditTextPreference;
+import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.SwitchPreference;
@@ -63,12 +64,14 @@ public class MainFragment extends PreferenceFragmentCompat {
                 return true;
             }
 
-            if (InternetDomainName.isValid(strVal) || InetAddresses.isInetAddress(strVal)) {
-                return true;
+            for (String address : MainActivity.splitServerAddresses(strVal)) {
+                if (!InternetDomainName.isValid(address) && !InetAddresses.isInetAddress(address)) {
+                    Toast.makeText(requireContext(), R.string.invalid_server_address, Toast.LENGTH_LONG).show();
+                    return false;
+                }
             }
 
-            Toast.makeText(requireContext(), R.string.invalid_server_address, Toast.LENGTH_LONG).show();
-            return false;
+            return true;
         });
 
         EditTextPreference serverPort = Objects.requireNonNull(findPreference("server_port"));
@@ -122,6 +125,20 @@ public class MainFragment extends PreferenceFragmentCompat {
 
         retryForever.setDefaultValue(Constants.DEFAULT.RETRY_FOREVER);
 
+        ListPreference heartbeatInterval = Objects.requireNonNull(findPreference("heartbeat_interval"));
+
+        heartbeatInterval.setDefaultValue(Constants.DEFAULT.HEARTBEAT_INTERVAL);
+
+        heartbeatInterval.setSummaryProvider((Preference.SummaryProvider<ListPreference>) preference -> {
+            CharSequence entry = preference.getEntry();
+
+            if (TextUtils.isEmpty(entry)) {
+                return getString(R.string.heartbeat_interval_15);
+            }
+
+            return entry;
+        });
+
         Preference notificationsFilters = Objects.requireNonNull(findPreference("notifications_filters"));
 
         SwitchPreference featureNotifications = Objects.requireNonNull(findPreference("feature_notifications"));
@@ -0,0 +1,286 @@
+package com.desuuuu.ovrphonebridge;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CborMessageCodecTest {
+    @Test
+    public void cborDecodesToTheJsonWriterOutput() throws Exception {
+        String json = new String(writeSample(new JsonMessageWriter()), StandardCharsets.UTF_8);
+        Map<String, Object> cbor = CborMessageReader.read(writeSample(new CborMessageWriter()));
+
+        assertEquals(json, toJson(cbor));
+    }
+
+    @Test
+    public void cborIsSmallerThanJson() throws Exception {
+        assertTrue(writeSample(new CborMessageWriter()).length < writeSample(new JsonMessageWriter()).length);
+    }
+
+    @Test
+    public void writersCanBeReused() throws Exception {
+        MessageWriter json = new JsonMessageWriter();
+        MessageWriter cbor = new CborMessageWriter();
+
+        writeSample(json);
+        writeSample(cbor);
+
+        assertEquals("{\"type\":\"pong\"}", new String(
+                json.reset().beginObject().name("type").value("pong").endObject().toByteArray(),
+                StandardCharsets.UTF_8));
+        assertEquals("{type=pong}", CborMessageReader.read(
+                cbor.reset().beginObject().name("type").value("pong").endObject().toByteArray()).toString());
+    }
+
+    @Test
+    public void jsonWriterEscapesLikeJsonWriter() throws Exception {
+        byte[] output = new JsonMessageWriter().reset()
+                .beginObject()
+                .name("a\"b").value("\\\t\b\n\r\f\u0001\u2028\u2029/\u00e9")
+                .endObject()
+                .toByteArray();
+
+        assertEquals("{\"a\\\"b\":\"\\\\\\t\\b\\n\\r\\f\\u0001\\u2028\\u2029/\u00e9\"}",
+                new String(output, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void readsIndefiniteAndDefiniteLengthMaps() throws Exception {
+        byte[] input = {
+                (byte)0xa2,                                 // map(2)
+                0x00, 0x15,                                 // type: ping
+                0x61, 'm',                                  // "m"
+                (byte)0xbf,                                 // map(*)
+                0x61, 'a', (byte)0x9f, 0x01, 0x20, (byte)0xff,  // "a": [1, -1]
+                0x61, 'b', (byte)0xbf, (byte)0xff,          // "b": {}
+                0x61, 'c', (byte)0xf6,                      // "c": null
+                (byte)0xff
+        };
+
+        Map<String, Object> message = CborMessageReader.read(input);
+
+        assertEquals("ping", message.get("type"));
+
+        Map<?, ?> nested = (Map<?, ?>)message.get("m");
+
+        assertEquals(Arrays.asList(1L, -1L), nested.get("a"));
+        assertTrue(((Map<?, ?>)nested.get("b")).isEmpty());
+        assertTrue(nested.containsKey("c"));
+        assertNull(nested.get("c"));
+    }
+
+    @Test
+    public void readsBatches() throws Exception {
+        byte[] message = writeSample(new CborMessageWriter());
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+
+        batch.write(CborMessageWriter.BATCH_PREFIX);
+        batch.write(message);
+        batch.write(CborMessageWriter.BATCH_SEPARATOR);
+        batch.write(message);
+        batch.write(CborMessageWriter.BATCH_SUFFIX);
+
+        Map<String, Object> decoded = CborMessageReader.read(batch.toByteArray());
+
+        assertEquals("batch", decoded.get("type"));
+        assertEquals(2, ((List<?>)decoded.get("messages")).size());
+        assertEquals(CborMessageReader.read(message), ((List<?>)decoded.get("messages")).get(1));
+    }
+
+    @Test
+    public void everyTagRoundTrips() throws Exception {
+        HashSet<String> names = new HashSet<>();
+        CborMessageWriter writer = new CborMessageWriter();
+
+        for (int tag = 0; MessageTags.get(tag) != null; tag++) {
+            String name = MessageTags.get(tag);
+
+            assertTrue("Duplicate tag " + name, names.add(name));
+            assertEquals(tag, MessageTags.get(name));
+
+            Map<String, Object> decoded = CborMessageReader.read(writer.reset()
+                    .beginObject()
+                    .name("type").value(name)
+                    .name(name).value(name)
+                    .endObject()
+                    .toByteArray());
+
+            assertEquals(name, decoded.get("type"));
+            assertEquals(name, decoded.get(name));
+        }
+
+        assertEquals(-1, MessageTags.get("not_a_tag"));
+        assertNull(MessageTags.get(-1));
+    }
+
+    @Test
+    public void tagsOnlyApplyToTypeValues() throws Exception {
+        byte[] output = new CborMessageWriter().reset()
+                .beginObject()
+                .name("name").value("type")
+                .name("type").value("custom")
+                .endObject()
+                .toByteArray();
+
+        Map<String, Object> decoded = CborMessageReader.read(output);
+
+        assertEquals("type", decoded.get("name"));
+        assertEquals("custom", decoded.get("type"));
+    }
+
+    @Test
+    public void commandsParseFromDecodedMessages() throws Exception {
+        InboundCommand command = InboundCommand.parse(CborMessageReader.read(new CborMessageWriter().reset()
+                .beginObject()
+                .name("type").value("list_sms_from")
+                .name("id").value(7)
+                .name("number").value("+15551234567")
+                .name("page").value(2)
+                .endObject()
+                .toByteArray()));
+
+        assertEquals(InboundCommand.TYPE_LIST_SMS_FROM, command.type);
+        assertEquals(7, command.id);
+        assertEquals("+15551234567", command.number);
+        assertEquals(2, command.page);
+
+        assertNull(InboundCommand.parse(CborMessageReader.read(new CborMessageWriter().reset()
+                .beginObject()
+                .name("type").value("custom")
+                .endObject()
+                .toByteArray())));
+
+        try {
+            InboundCommand.parse(CborMessageReader.read(new CborMessageWriter().reset()
+                    .beginObject()
+                    .name("type").value("ping")
+                    .name("id").value("one")
+                    .endObject()
+                    .toByteArray()));
+
+            fail("Accepted a ping without a numeric id");
+        } catch (Exception e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void rejectsUnknownTags() {
+        assertInvalid(new byte[] { (byte)0xa1, 0x18, (byte)0xfa, 0x01 });
+        assertInvalid(new byte[] { (byte)0xa1, 0x00, 0x18, (byte)0xfa });
+    }
+
+    @Test
+    public void rejectsMalformedInput() throws Exception {
+        byte[] message = writeSample(new CborMessageWriter());
+
+        for (int length = 0; length < message.length; length++) {
+            assertInvalid(Arrays.copyOf(message, length));
+        }
+
+        assertInvalid(Arrays.copyOf(message, message.length + 1));
+        assertInvalid(new byte[] { (byte)0x9f, (byte)0xff });
+        assertInvalid(new byte[] { (byte)0xa1, 0x40, 0x01 });
+    }
+
+    @Test
+    public void rejectsDeepNesting() {
+        byte[] input = new byte[64];
+
+        Arrays.fill(input, (byte)0x81);
+        input[0] = (byte)0xa1;
+        input[1] = 0x01;
+
+        assertInvalid(input);
+    }
+
+    private static byte[] writeSample(MessageWriter writer) throws Exception {
+        writer.reset()
+                .beginObject()
+                .name("type").value("sms_from_list")
+                .name("id").value(42)
+                .name("page").value(0)
+                .name("list").beginArray();
+
+        for (int i = 0; i < 3; i++) {
+            writer.beginObject()
+                    .name("type").value(i % 2 == 0 ? "in" : "out")
+                    .name("body").value("Message " + i + " caf\u00e9 \ud83d\ude00")
+                    .name("date").value("2019-06-01 12:34:56")
+                    .endObject();
+        }
+
+        return writer.endArray()
+                .name("name").value((String)null)
+                .name("number").value("+15551234567")
+                .name("success").value(true)
+                .name("persistent").value(false)
+                .name("offset").value(-300)
+                .name("epoch").value(1L << 40)
+                .name("extra").beginArray().beginArray().endArray().beginObject().endObject().endArray()
+                .endObject()
+                .toByteArray();
+    }
+
+    private static void assertInvalid(byte[] input) {
+        try {
+            CborMessageReader.read(input);
+        } catch (Exception e) {
+            return;
+        }
+
+        fail("Accepted " + Arrays.toString(input));
+    }
+
+    // Serializes decoded values the way JsonMessageWriter would have written
+    // them, the sample only uses strings without escapes.
+    private static String toJson(Object value) {
+        StringBuilder builder = new StringBuilder();
+
+        if (value == null) {
+            builder.append("null");
+        } else if (value instanceof String) {
+            builder.append('"').append(value).append('"');
+        } else if (value instanceof Map) {
+            builder.append('{');
+
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+                if (builder.length() > 1) {
+                    builder.append(',');
+                }
+
+                builder.append('"').append(entry.getKey()).append("\":").append(toJson(entry.getValue()));
+            }
+
+            builder.append('}');
+        } else if (value instanceof List) {
+            builder.append('[');
+
+            for (Object item : (List<?>)value) {
+                if (builder.length() > 1) {
+                    builder.append(',');
+                }
+
+                builder.append(toJson(item));
+            }
+
+            builder.append(']');
+        } else {
+            builder.append(value);
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,107 @@
+package com.desuuuu.ovrphonebridge;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+// Compares the cipher suites on sms_from_list sized payloads. XChaCha20 needs
+// the libsodium native library, which is only loadable when it is installed on
+// the host, so that half is skipped otherwise.
+public class CipherSuiteBenchmark {
+    private static final int WARMUP_ROUNDS = 2000;
+    private static final int ROUNDS = 20000;
+
+    private static final byte[] PAYLOAD = createPayload();
+
+    @Test
+    public void aes256gcm() throws Exception {
+        run(new AesGcmAead());
+    }
+
+    @Test
+    public void xchacha20poly1305() throws Exception {
+        Aead aead;
+
+        try {
+            aead = new XChaChaAead();
+        } catch (LinkageError e) {
+            Assume.assumeNoException("libsodium is not available", e);
+            return;
+        }
+
+        run(aead);
+    }
+
+    private static void run(Aead aead) throws Exception {
+        Random random = new Random(0);
+
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[aead.getNonceSize()];
+        byte[] ad = new byte[8];
+
+        random.nextBytes(key);
+
+        byte[] sealed = new byte[PAYLOAD.length + aead.getTagSize()];
+        byte[] opened = new byte[PAYLOAD.length];
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            roundTrip(aead, random, key, nonce, ad, sealed, opened);
+        }
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < ROUNDS; i++) {
+            roundTrip(aead, random, key, nonce, ad, sealed, opened);
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        assertArrayEquals(PAYLOAD, opened);
+
+        System.out.println(String.format(Locale.US,
+                "%s: %d byte payload, %.1f us per seal+open, %.1f MB/s",
+                aead.getName(),
+                PAYLOAD.length,
+                elapsed / 1000.0 / ROUNDS,
+                (double)PAYLOAD.length * ROUNDS / (elapsed / 1e9) / (1024 * 1024)));
+    }
+
+    private static void roundTrip(Aead aead, Random random, byte[] key, byte[] nonce, byte[] ad,
+                                  byte[] sealed, byte[] opened) throws Exception {
+        random.nextBytes(nonce);
+
+        int length = aead.encrypt(sealed, PAYLOAD, PAYLOAD.length, ad, ad.length, nonce, key);
+
+        aead.decrypt(opened, sealed, length, ad, ad.length, nonce, key);
+    }
+
+    private static byte[] createPayload() {
+        Random random = new Random(1);
+
+        StringBuilder builder = new StringBuilder("{\"type\":\"sms_from_list\",\"page\":0,\"list\":[");
+
+        for (int i = 0; i < Constants.SMS_PER_PAGE; i++) {
+            char[] body = new char[40 + random.nextInt(120)];
+
+            Arrays.fill(body, (char)('a' + random.nextInt(26)));
+
+            if (i > 0) {
+                builder.append(',');
+            }
+
+            builder.append("{\"type\":\"").append(random.nextBoolean() ? "in" : "out")
+                    .append("\",\"body\":\"").append(body)
+                    .append("\",\"date\":\"2019-06-0").append(1 + random.nextInt(9)).append(" 12:34:56\"}");
+        }
+
+        builder.append("],\"name\":\"Contact\",\"number\":\"+15551234567\"}");
+
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
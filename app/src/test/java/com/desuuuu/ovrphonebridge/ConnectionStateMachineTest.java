@@ -0,0 +1,171 @@
+package com.desuuuu.ovrphonebridge;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStateMachineTest {
+    private VirtualScheduler mScheduler;
+    private ConnectionStateMachine mMachine;
+
+    private final ArrayList<String> mTransitions = new ArrayList<>();
+    private final ArrayList<String> mRejections = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mScheduler = new VirtualScheduler();
+
+        mMachine = new ConnectionStateMachine(mScheduler, new ConnectionStateMachine.Listener() {
+            @Override
+            public void onTransition(ConnectionStateMachine.State from, ConnectionStateMachine.State to,
+                                     long timeInState) {
+                mTransitions.add(from + "->" + to + "@" + timeInState);
+            }
+
+            @Override
+            public void onRejected(ConnectionStateMachine.Event event, ConnectionStateMachine.State state) {
+                mRejections.add(event + "@" + state);
+            }
+        });
+    }
+
+    @Test
+    public void connectsThroughEveryHandshakeState() {
+        assertTrue(mMachine.is(ConnectionStateMachine.State.DISCONNECTED));
+
+        assertTrue(mMachine.handle(ConnectionStateMachine.Event.CONNECT));
+        mScheduler.advance(30);
+        assertTrue(mMachine.handle(ConnectionStateMachine.Event.SOCKET_CONNECTED));
+        mScheduler.advance(20);
+        assertTrue(mMachine.handle(ConnectionStateMachine.Event.TRUST_PROMPT));
+        mScheduler.advance(1000);
+        assertTrue(mMachine.handle(ConnectionStateMachine.Event.HANDSHAKE_SENT));
+        mScheduler.advance(50);
+        assertTrue(mMachine.handle(ConnectionStateMachine.Event.HANDSHAKE_DONE));
+
+        assertTrue(mMachine.is(ConnectionStateMachine.State.CONNECTED));
+        assertEquals(1100, mMachine.getLastConnectDuration());
+        assertEquals(1, mMachine.getConnectCount());
+
+        assertEquals("[DISCONNECTED->CONNECTING@0, CONNECTING->HANDSHAKING@30, "
+                + "HANDSHAKING->AWAITING_TRUST@20, AWAITING_TRUST->HANDSHAKING@1000, "
+                + "HANDSHAKING->CONNECTED@50]", mTransitions.toString());
+        assertTrue(mRejections.isEmpty());
+    }
+
+    @Test
+    public void rejectsEventsOutsideTheirStates() {
+        assertFalse(mMachine.handle(ConnectionStateMachine.Event.HANDSHAKE_DONE));
+        assertFalse(mMachine.handle(ConnectionStateMachine.Event.SOCKET_CONNECTED));
+
+        mMachine.handle(ConnectionStateMachine.Event.CONNECT);
+
+        assertFalse(mMachine.handle(ConnectionStateMachine.Event.CONNECT));
+        assertTrue(mMachine.is(ConnectionStateMachine.State.CONNECTING));
+
+        assertEquals("[HANDSHAKE_DONE@DISCONNECTED, SOCKET_CONNECTED@DISCONNECTED, CONNECT@CONNECTING]",
+                mRejections.toString());
+    }
+
+    @Test
+    public void disconnectIsAcceptedFromEveryState() {
+        for (ConnectionStateMachine.State state : ConnectionStateMachine.State.values()) {
+            assertTrue(ConnectionStateMachine.Event.DISCONNECT.isValidIn(state));
+        }
+    }
+
+    @Test
+    public void timersFireWhileTheirStateLasts() {
+        int[] fired = new int[1];
+
+        mMachine.handle(ConnectionStateMachine.Event.CONNECT);
+        mMachine.schedule(() -> fired[0]++, 100);
+
+        mScheduler.advance(99);
+        assertEquals(0, fired[0]);
+
+        mScheduler.advance(1);
+        assertEquals(1, fired[0]);
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void transitionsCancelPendingTimers() {
+        int[] fired = new int[1];
+
+        mMachine.handle(ConnectionStateMachine.Event.CONNECT);
+        mMachine.handle(ConnectionStateMachine.Event.SOCKET_CONNECTED);
+        mMachine.schedule(() -> fired[0]++, 100);
+        mMachine.schedule(() -> fired[0]++, 200);
+
+        mScheduler.advance(50);
+        mMachine.handle(ConnectionStateMachine.Event.HANDSHAKE_SENT);
+
+        assertEquals(0, mScheduler.getPendingCount());
+
+        mScheduler.advance(1000);
+        assertEquals(0, fired[0]);
+    }
+
+    @Test
+    public void rejectedEventsKeepTimers() {
+        int[] fired = new int[1];
+
+        mMachine.handle(ConnectionStateMachine.Event.CONNECT);
+        mMachine.schedule(() -> fired[0]++, 100);
+
+        mMachine.handle(ConnectionStateMachine.Event.HANDSHAKE_DONE);
+
+        mScheduler.advance(100);
+        assertEquals(1, fired[0]);
+    }
+
+    @Test
+    public void reconnectTimeCountsFromTheConnectionLoss() {
+        connect();
+
+        mScheduler.advance(5000);
+
+        mMachine.handle(ConnectionStateMachine.Event.DISCONNECT);
+        mMachine.handle(ConnectionStateMachine.Event.BACK_OFF);
+        mMachine.schedule(() -> mMachine.handle(ConnectionStateMachine.Event.CONNECT), 400);
+
+        mScheduler.advance(400);
+        assertTrue(mMachine.is(ConnectionStateMachine.State.CONNECTING));
+
+        mScheduler.advance(100);
+        mMachine.handle(ConnectionStateMachine.Event.SOCKET_CONNECTED);
+        mMachine.handle(ConnectionStateMachine.Event.HANDSHAKE_SENT);
+        mMachine.handle(ConnectionStateMachine.Event.HANDSHAKE_DONE);
+
+        assertEquals(500, mMachine.getLastConnectDuration());
+        assertEquals(2, mMachine.getConnectCount());
+    }
+
+    @Test
+    public void backOffRetriesKeepTheFirstAttemptStart() {
+        mMachine.handle(ConnectionStateMachine.Event.CONNECT);
+        mScheduler.advance(300);
+        mMachine.handle(ConnectionStateMachine.Event.BACK_OFF);
+        mScheduler.advance(700);
+        mMachine.handle(ConnectionStateMachine.Event.CONNECT);
+        mScheduler.advance(100);
+
+        mMachine.handle(ConnectionStateMachine.Event.SOCKET_CONNECTED);
+        mMachine.handle(ConnectionStateMachine.Event.HANDSHAKE_DONE);
+
+        assertEquals(1100, mMachine.getLastConnectDuration());
+    }
+
+    private void connect() {
+        mMachine.handle(ConnectionStateMachine.Event.CONNECT);
+        mMachine.handle(ConnectionStateMachine.Event.SOCKET_CONNECTED);
+        mMachine.handle(ConnectionStateMachine.Event.HANDSHAKE_SENT);
+        mMachine.handle(ConnectionStateMachine.Event.HANDSHAKE_DONE);
+    }
+}
@@ -0,0 +1,244 @@
+package com.desuuuu.ovrphonebridge;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Sends sealed frames over a loopback socket and opens them in the order they
+// arrive, like the server does. Needs the libsodium native library.
+public class ConnectionTransportTest {
+    private static final int BULK_SIZE = 1 << 21;
+
+    private static final byte[] PING = "{\"type\":\"ping\",\"id\":1}".getBytes(StandardCharsets.UTF_8);
+
+    private final Random mRandom = new Random(0);
+    private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<>();
+
+    private Crypto mClient;
+    private Crypto mServer;
+    private ServerSocket mServerSocket;
+    private Socket mSocket;
+    private ConnectionTransport mTransport;
+    private boolean mFragments;
+    private boolean mInterleaved;
+
+    @Before
+    public void setUp() throws Exception {
+        try {
+            Crypto.randomBytes(1);
+        } catch (LinkageError e) {
+            Assume.assumeNoException("libsodium is not available", e);
+        }
+
+        byte[] clientKey = randomBytes(32);
+        byte[] serverKey = randomBytes(32);
+
+        mClient = new Crypto(clientKey, serverKey, "id");
+        mServer = new Crypto(serverKey, clientKey, "id");
+
+        mClient.setCipherSuite(Crypto.CIPHER_AES256GCM);
+        mServer.setCipherSuite(Crypto.CIPHER_AES256GCM);
+
+        // A small receive window keeps the bulk frame in flight while the
+        // control frames are sent.
+        mServerSocket = new ServerSocket();
+        mServerSocket.setReceiveBufferSize(4096);
+        mServerSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mTransport != null) {
+            mTransport.quit();
+        }
+
+        if (mSocket != null) {
+            mSocket.close();
+        }
+
+        if (mServerSocket != null) {
+            mServerSocket.close();
+        }
+    }
+
+    @Test
+    public void fragmentsBoxFrames() throws Exception {
+        List<byte[]> received = sendBulkThenControl();
+
+        assertTrue(mFragments);
+        assertTrue(mInterleaved);
+        assertEquals(4, received.size());
+    }
+
+    // Control frames sealed while a bulk frame is going out must not reach
+    // the peer before it, or the implicit stream counters no longer match.
+    @Test
+    public void keepsStreamFramesInSealOrder() throws Exception {
+        byte[] clientHeader = Crypto.createStreamHeader();
+        byte[] serverHeader = Crypto.createStreamHeader();
+
+        mClient.startStream(clientHeader, serverHeader);
+        mServer.startStream(serverHeader, clientHeader);
+
+        List<byte[]> received = sendBulkThenControl();
+
+        assertFalse(mFragments);
+        assertEquals(4, received.size());
+        assertEquals(BULK_SIZE, received.get(0).length);
+
+        for (int i = 1; i < received.size(); i++) {
+            assertArrayEquals(PING, received.get(i));
+        }
+    }
+
+    private List<byte[]> sendBulkThenControl() throws Exception {
+        mTransport = new ConnectionTransport(new OutboundQueue(
+                Constants.TRANSPORT.MAX_QUEUED_MESSAGES,
+                Constants.TRANSPORT.MAX_QUEUED_SIZE), new SealingEncoder(), new EventListener());
+
+        mTransport.connect(null, new String[] { "127.0.0.1" }, mServerSocket.getLocalPort());
+
+        mSocket = mServerSocket.accept();
+        mSocket.setSoTimeout(5000);
+
+        assertEquals("connect", mEvents.poll(5, TimeUnit.SECONDS));
+
+        mTransport.setFragmenting(true);
+
+        byte[] bulk = randomBytes(BULK_SIZE);
+
+        mTransport.send(OutboundMessage.create(Constants.PRIORITY.BULK, bulk));
+
+        DataInputStream input = new DataInputStream(mSocket.getInputStream());
+        ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+        List<byte[]> received = new ArrayList<>();
+
+        while (received.size() < 4) {
+            int header = input.readInt();
+            boolean fragment = (header < 0);
+            byte[] frame = new byte[fragment ? header & 0x3fffffff : header];
+
+            if (received.isEmpty() && fragments.size() == 0) {
+                // The bulk frame has been sealed and started going out.
+                for (int i = 0; i < 3; i++) {
+                    mTransport.send(OutboundMessage.create(Constants.PRIORITY.CONTROL, PING));
+                }
+            }
+
+            input.readFully(frame);
+
+            if (!fragment && fragments.size() > 0) {
+                mInterleaved = true;
+            }
+
+            if (fragment) {
+                mFragments = true;
+
+                fragments.write(frame);
+
+                if ((header & 0x40000000) == 0) {
+                    continue;
+                }
+
+                frame = fragments.toByteArray();
+
+                fragments.reset();
+            }
+
+            byte[] message = mServer.decrypt(frame);
+
+            if (message.length == bulk.length) {
+                assertArrayEquals(bulk, message);
+            }
+
+            received.add(message);
+        }
+
+        return received;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+
+        mRandom.nextBytes(bytes);
+
+        return bytes;
+    }
+
+    private class SealingEncoder implements ConnectionTransport.Encoder {
+        private int mSize;
+
+        @Override
+        public int encode(OutboundMessage message) {
+            try {
+                mSize = mClient.seal(message.payload, message.payload.length);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+
+            return (Constants.TRANSPORT.FRAME_HEADER_SIZE + mSize);
+        }
+
+        @Override
+        public int encode(List<OutboundMessage> messages) {
+            return -1;
+        }
+
+        @Override
+        public void writeFrame(ByteBuffer output) {
+            output.putInt(mSize);
+
+            mClient.writeSealed(output);
+        }
+
+        @Override
+        public boolean isSequenced() {
+            return mClient.isStreaming();
+        }
+    }
+
+    private class EventListener implements ConnectionTransport.Listener {
+        @Override
+        public void onConnect() {
+            mEvents.add("connect");
+        }
+
+        @Override
+        public void onConnectFail(Exception e) {
+            mEvents.add("connect_fail");
+        }
+
+        @Override
+        public void onDisconnect(Exception e) {
+            mEvents.add("disconnect");
+        }
+
+        @Override
+        public void onMessage(String message) {
+        }
+
+        @Override
+        public void onMessage(byte[] message) {
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.desuuuu.ovrphonebridge;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Needs the libsodium native library for key derivation, so it is skipped on
+// hosts where it is not installed.
+public class CryptoTest {
+    private static final byte[] PAYLOAD = "{\"type\":\"ping\",\"id\":1}".getBytes(StandardCharsets.UTF_8);
+
+    private final Random mRandom = new Random(0);
+
+    private byte[] mClientKey;
+    private byte[] mServerKey;
+
+    @Before
+    public void setUp() {
+        try {
+            Crypto.randomBytes(1);
+        } catch (LinkageError e) {
+            Assume.assumeNoException("libsodium is not available", e);
+        }
+
+        mClientKey = randomBytes(32);
+        mServerKey = randomBytes(32);
+    }
+
+    // The box keys are the same in every session between the same key pairs.
+    // Headers that share the nonce prefix must still give different streams.
+    @Test
+    public void sessionsNeverShareStreamKeys() throws Exception {
+        for (String cipherSuite : getCipherSuites()) {
+            HashSet<String> first = new HashSet<>();
+            HashSet<String> rekeyed = new HashSet<>();
+
+            for (int i = 0; i < 1000; i++) {
+                Crypto crypto = new Crypto(mClientKey, mServerKey, "id");
+
+                crypto.setCipherSuite(cipherSuite);
+                crypto.startStream(headerWithPrefix(), headerWithPrefix());
+
+                assertTrue(cipherSuite, first.add(Arrays.toString(crypto.encrypt(PAYLOAD))));
+
+                crypto.rekeyTx();
+
+                assertTrue(cipherSuite, rekeyed.add(Arrays.toString(crypto.encrypt(PAYLOAD))));
+            }
+        }
+    }
+
+    @Test
+    public void streamRoundTripsBetweenPeers() throws Exception {
+        for (String cipherSuite : getCipherSuites()) {
+            byte[] clientHeader = Crypto.createStreamHeader();
+            byte[] serverHeader = Crypto.createStreamHeader();
+
+            Crypto client = new Crypto(mClientKey, mServerKey, "id");
+            Crypto server = new Crypto(mServerKey, mClientKey, "id");
+
+            client.setCipherSuite(cipherSuite);
+            server.setCipherSuite(cipherSuite);
+
+            client.startStream(clientHeader, serverHeader);
+            server.startStream(serverHeader, clientHeader);
+
+            for (int i = 0; i < 3; i++) {
+                assertArrayEquals(PAYLOAD, server.decrypt(client.encrypt(PAYLOAD)));
+                assertArrayEquals(PAYLOAD, client.decrypt(server.encrypt(PAYLOAD)));
+            }
+
+            client.rekeyTx();
+            server.rekeyRx(1);
+
+            assertArrayEquals(PAYLOAD, server.decrypt(client.encrypt(PAYLOAD)));
+            assertArrayEquals(PAYLOAD, client.decrypt(server.encrypt(PAYLOAD)));
+        }
+    }
+
+    @Test
+    public void streamRejectsReorderedFrames() throws Exception {
+        byte[] header = Crypto.createStreamHeader();
+
+        Crypto client = new Crypto(mClientKey, mServerKey, "id");
+        Crypto server = new Crypto(mServerKey, mClientKey, "id");
+
+        client.setCipherSuite(Crypto.CIPHER_AES256GCM);
+        server.setCipherSuite(Crypto.CIPHER_AES256GCM);
+
+        client.startStream(header, header);
+        server.startStream(header, header);
+
+        client.encrypt(PAYLOAD);
+
+        try {
+            server.decrypt(client.encrypt(PAYLOAD));
+            fail("Accepted a frame out of order");
+        } catch (Exception e) {
+            assertEquals("Decryption failed", e.getMessage());
+        }
+    }
+
+    private String[] getCipherSuites() {
+        return new String[] { Crypto.CIPHER_AES256GCM, Crypto.CIPHER_XCHACHA20POLY1305 };
+    }
+
+    // AES-GCM stream nonces only use the first four bytes of the header.
+    private byte[] headerWithPrefix() {
+        byte[] header = randomBytes(16);
+
+        Arrays.fill(header, 0, 4, (byte)0x5a);
+
+        return header;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+
+        mRandom.nextBytes(bytes);
+
+        return bytes;
+    }
+}
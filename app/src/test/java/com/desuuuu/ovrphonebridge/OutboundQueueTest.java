@@ -0,0 +1,117 @@
+package com.desuuuu.ovrphonebridge;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest {
+    private final OutboundQueue mQueue = new OutboundQueue(16, 1 << 16);
+
+    @Test
+    public void dropsMessagesFromOlderConnections() {
+        offer(Constants.PRIORITY.INTERACTIVE, 1);
+        OutboundMessage current = offer(Constants.PRIORITY.INTERACTIVE, 2);
+
+        assertSame(current, mQueue.poll(Constants.PRIORITY.INTERACTIVE, 2));
+        assertTrue(mQueue.isEmpty());
+    }
+
+    @Test
+    public void keepsMessagesForNewerConnections() {
+        OutboundMessage next = offer(Constants.PRIORITY.INTERACTIVE, 3);
+
+        assertNull(mQueue.poll(Constants.PRIORITY.INTERACTIVE, 2));
+        assertTrue(mQueue.isEmpty(Constants.PRIORITY.INTERACTIVE, 2));
+        assertTrue(mQueue.isEmpty(2));
+        assertFalse(mQueue.isEmpty());
+
+        mQueue.discard(3);
+
+        assertFalse(mQueue.isEmpty(3));
+        assertSame(next, mQueue.poll(Constants.PRIORITY.INTERACTIVE, 3));
+        assertTrue(mQueue.isEmpty());
+    }
+
+    @Test
+    public void discardCancelsOlderMessagesOnly() {
+        offer(Constants.PRIORITY.BULK, 1);
+        offer(Constants.PRIORITY.REALTIME, 1);
+        OutboundMessage current = offer(Constants.PRIORITY.BULK, 2);
+
+        mQueue.discard(2);
+
+        assertTrue(mQueue.isEmpty(Constants.PRIORITY.REALTIME, 2));
+        assertSame(current, mQueue.poll(Constants.PRIORITY.BULK, 2));
+        assertTrue(mQueue.isEmpty());
+    }
+
+    @Test
+    public void mergesUpdatesForTheSameConnection() {
+        OutboundMessage first = offerNotification(OutboundMessage.TYPE_NOTIFICATION_RECEIVED, 1, 16);
+        OutboundMessage update = offerNotification(OutboundMessage.TYPE_NOTIFICATION_RECEIVED, 1, 32);
+
+        assertSame(first, mQueue.poll(Constants.PRIORITY.REALTIME, 1));
+        assertArrayEquals(update.payload, first.payload);
+        assertTrue(mQueue.isEmpty());
+        assertEquals(1, mQueue.getMergedCount());
+    }
+
+    @Test
+    public void keepsUpdatesForNewerConnections() {
+        offerNotification(OutboundMessage.TYPE_NOTIFICATION_RECEIVED, 1, 16);
+        OutboundMessage update = offerNotification(OutboundMessage.TYPE_NOTIFICATION_RECEIVED, 2, 32);
+
+        assertSame(update, mQueue.poll(Constants.PRIORITY.REALTIME, 2));
+        assertEquals(2, update.generation);
+        assertTrue(mQueue.isEmpty());
+        assertEquals(0, mQueue.getMergedCount());
+    }
+
+    @Test
+    public void removalCancelsUnsentNotifications() {
+        offerNotification(OutboundMessage.TYPE_NOTIFICATION_RECEIVED, 1, 16);
+        offerNotification(OutboundMessage.TYPE_NOTIFICATION_REMOVED, 1, 16);
+
+        assertTrue(mQueue.isEmpty());
+        assertEquals(1, mQueue.getMergedCount());
+    }
+
+    @Test
+    public void removalIsSentForNotificationsTheServerSaw() {
+        offerNotification(OutboundMessage.TYPE_NOTIFICATION_RECEIVED, 1, 16);
+
+        mQueue.poll(Constants.PRIORITY.REALTIME, 1);
+
+        offerNotification(OutboundMessage.TYPE_NOTIFICATION_RECEIVED, 1, 32);
+        OutboundMessage removed = offerNotification(OutboundMessage.TYPE_NOTIFICATION_REMOVED, 1, 16);
+
+        assertSame(removed, mQueue.poll(Constants.PRIORITY.REALTIME, 1));
+        assertTrue(mQueue.isEmpty());
+        assertEquals(1, mQueue.getMergedCount());
+    }
+
+    private OutboundMessage offer(int priority, int generation) {
+        OutboundMessage message = OutboundMessage.create(priority, new byte[16]);
+
+        message.generation = generation;
+
+        assertTrue(mQueue.offer(message));
+
+        return message;
+    }
+
+    private OutboundMessage offerNotification(int type, int generation, int size) {
+        OutboundMessage message = OutboundMessage.notification(type, "key", new byte[size]);
+
+        message.generation = generation;
+
+        assertTrue(mQueue.offer(message));
+
+        return message;
+    }
+}
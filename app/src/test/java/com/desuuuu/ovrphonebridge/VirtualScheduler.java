@@ -0,0 +1,75 @@
+package com.desuuuu.ovrphonebridge;
+
+import java.util.ArrayList;
+
+// Runs scheduled tasks against a manually advanced clock, in due-time order.
+class VirtualScheduler implements Scheduler {
+    private final ArrayList<Task> mTasks = new ArrayList<>();
+
+    private long mNow;
+    private long mSequence;
+
+    @Override
+    public long now() {
+        return mNow;
+    }
+
+    @Override
+    public Cancellable schedule(Runnable task, long delay) {
+        Task scheduled = new Task(task, mNow + delay, mSequence++);
+
+        mTasks.add(scheduled);
+
+        return () -> mTasks.remove(scheduled);
+    }
+
+    void advance(long delay) {
+        long target = mNow + delay;
+
+        Task next;
+
+        while ((next = nextDue(target)) != null) {
+            mTasks.remove(next);
+
+            mNow = next.mDue;
+
+            next.mTask.run();
+        }
+
+        mNow = target;
+    }
+
+    int getPendingCount() {
+        return mTasks.size();
+    }
+
+    private Task nextDue(long target) {
+        Task next = null;
+
+        for (Task task : mTasks) {
+            if (task.mDue > target) {
+                continue;
+            }
+
+            if (next == null
+                    || task.mDue < next.mDue
+                    || (task.mDue == next.mDue && task.mSequence < next.mSequence)) {
+                next = task;
+            }
+        }
+
+        return next;
+    }
+
+    private static class Task {
+        private final Runnable mTask;
+        private final long mDue;
+        private final long mSequence;
+
+        Task(Runnable task, long due, long sequence) {
+            mTask = task;
+            mDue = due;
+            mSequence = sequence;
+        }
+    }
+}